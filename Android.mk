@@ -3,7 +3,7 @@ include $(CLEAR_VARS)
 
 LOCAL_MODULE_TAGS := optional
 
-LOCAL_SRC_FILES := $(call all-subdir-java-files) $(call all-renderscript-files-under, java)
+LOCAL_SRC_FILES := $(call all-java-files-under, java) $(call all-renderscript-files-under, java)
 
 LOCAL_PACKAGE_NAME := SecondScreen
 LOCAL_CERTIFICATE := shared
@@ -27,6 +27,8 @@ import android.widget.Toast;
 import com.farmerbb.secondscreen.R;
 import com.farmerbb.secondscreen.service.DisplayConnectionService;
 import com.farmerbb.secondscreen.service.NotificationService;
+import com.farmerbb.secondscreen.util.CommandVerifier;
+import com.farmerbb.secondscreen.util.SettingsMirror;
 import com.farmerbb.secondscreen.util.U;
 
 import java.io.File;
@@ -36,6 +38,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 
+import eu.chainfire.libsuperuser.Watchdog;
+
 public class DebugModeActivity extends PreferenceActivity implements OnPreferenceClickListener {
 
     @SuppressWarnings("deprecation")
@@ -51,6 +55,9 @@ public class DebugModeActivity extends PreferenceActivity implements OnPreferenc
             findPreference("show_simulated_size_density").setOnPreferenceClickListener(this);
             findPreference("simulate_reboot").setOnPreferenceClickListener(this);
             findPreference("simulate_app_upgrade").setOnPreferenceClickListener(this);
+            findPreference("show_command_stats").setOnPreferenceClickListener(this);
+            findPreference("show_settings_mirror_stats").setOnPreferenceClickListener(this);
+            findPreference("show_watchdog_stats").setOnPreferenceClickListener(this);
 
             if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)
                 findPreference("dump_app_state").setOnPreferenceClickListener(this);
@@ -96,6 +103,27 @@ public class DebugModeActivity extends PreferenceActivity implements OnPreferenc
                     dumpAppState(MainActivity.class.getName(), "prefMain");
 
                 break;
+            case "show_command_stats":
+                Toast.makeText(this,
+                        getCommandStats(CommandVerifier.Step.SIZE, R.string.pref_title_resolution) + "\n"
+                        + getCommandStats(CommandVerifier.Step.DENSITY, R.string.pref_title_dpi),
+                        Toast.LENGTH_LONG).show();
+                break;
+            case "show_settings_mirror_stats":
+                // Counted since the process started
+                long saved = SettingsMirror.getSavedQueries();
+                Toast.makeText(this, getResources().getString(R.string.debug_settings_mirror_stats,
+                        saved + SettingsMirror.getQueries(), saved), Toast.LENGTH_LONG).show();
+                break;
+            case "show_watchdog_stats":
+                // Counted since the process started
+                Toast.makeText(this, getResources().getString(R.string.debug_watchdog_stats,
+                        Watchdog.getScheduledCount(),
+                        Watchdog.getCancelledCount(),
+                        Watchdog.getOutstanding(),
+                        Watchdog.getWatchdogExitCount(),
+                        Watchdog.getShellDiedCount()), Toast.LENGTH_LONG).show();
+                break;
         }
 
         finish();
@@ -103,6 +131,17 @@ public class DebugModeActivity extends PreferenceActivity implements OnPreferenc
         return true;
     }
 
+    // How often a verified command took effect, from command_stats.xml
+    private String getCommandStats(CommandVerifier.Step step, int title) {
+        float successRate = CommandVerifier.getSuccessRate(this, step);
+        if(successRate < 0)
+            return getResources().getString(R.string.debug_command_stats_none, getResources().getString(title));
+
+        return getResources().getString(R.string.debug_command_stats, getResources().getString(title),
+                Math.round(successRate * 100),
+                Math.round(CommandVerifier.getFirstAttemptRate(this, step) * 100));
+    }
+
     private void dumpAppState(String name, String name2) {
         File file = new File(getFilesDir().getParent() + File.separator + "shared_prefs" + File.separator + name + ".xml");
         File file2 = new File(getExternalFilesDir(null), name2);
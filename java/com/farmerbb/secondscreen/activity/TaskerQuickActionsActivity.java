@@ -35,6 +35,7 @@ import android.view.WindowManager;
 
 import com.farmerbb.secondscreen.R;
 import com.farmerbb.secondscreen.fragment.dialog.QuickActionsDialogFragment;
+import com.farmerbb.secondscreen.profile.ProfileState;
 import com.farmerbb.secondscreen.service.LockDeviceService;
 import com.farmerbb.secondscreen.util.PluginBundleManagerQuickActions;
 import com.farmerbb.secondscreen.util.U;
@@ -572,43 +573,8 @@ SharedPreferences.OnSharedPreferenceChangeListener {
 
                 editor.putString("original_filename", prefCurrent.getString("filename", "0"));
 
-                if("fallback".equals(prefActive.getString("rotation_lock_new", "fallback")) && prefActive.getBoolean("rotation_lock", false))
-                    editor.putString("rotation_lock_new", "landscape");
-                else
-                    editor.putString("rotation_lock_new", prefActive.getString("rotation_lock_new", "do-nothing"));
-
-                if("fallback".equals(prefActive.getString("immersive_new", "fallback")) && prefActive.getBoolean("immersive", false))
-                    editor.putString("immersive_new", "immersive-mode");
-                else
-                    editor.putString("immersive_new", prefActive.getString("immersive_new", "do-nothing"));
-
-                if(prefActive.getBoolean("overscan", false)) {
-                    editor.putBoolean("overscan", true);
-                    editor.putInt("overscan_left", prefActive.getInt("overscan_left", 20));
-                    editor.putInt("overscan_right", prefActive.getInt("overscan_right", 20));
-                    editor.putInt("overscan_top", prefActive.getInt("overscan_top", 20));
-                    editor.putInt("overscan_bottom", prefActive.getInt("overscan_bottom", 20));
-                } else {
-                    editor.putBoolean("overscan", false);
-                    editor.putInt("overscan_left", 20);
-                    editor.putInt("overscan_right", 20);
-                    editor.putInt("overscan_top", 20);
-                    editor.putInt("overscan_bottom", 20);
-                }
-
                 editor.putString("profile_name", prefActive.getString("profile_name", getResources().getString(R.string.action_new)));
-                editor.putBoolean("bluetooth_on", prefActive.getBoolean("bluetooth_on", false));
-                editor.putBoolean("wifi_on", prefActive.getBoolean("wifi_on", false));
-                editor.putBoolean("daydreams_on", prefActive.getBoolean("daydreams_on", false));
-                editor.putBoolean("show_touches", prefActive.getBoolean("show_touches", false));
-                editor.putBoolean("backlight_off", prefActive.getBoolean("backlight_off", false));
-                editor.putBoolean("vibration_off", prefActive.getBoolean("vibration_off", false));
-                editor.putString("size", prefActive.getString("size", "reset"));
-                editor.putString("density", prefActive.getString("density", "reset"));
-                editor.putBoolean("chrome", prefActive.getBoolean("chrome", false));
-                editor.putString("ui_refresh", prefActive.getString("ui_refresh", "do-nothing"));
-                editor.putBoolean("navbar", prefActive.getBoolean("navbar", false));
-                editor.putString("screen_timeout", prefActive.getString("screen_timeout", "do-nothing"));
+                ProfileState.read(prefActive).write(editor);
                 editor.apply();
             }
         }
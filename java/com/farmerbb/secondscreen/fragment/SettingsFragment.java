@@ -33,6 +33,7 @@ import com.farmerbb.secondscreen.activity.NotificationSettingsActivity;
 import com.farmerbb.secondscreen.fragment.dialog.AboutDialogFragment;
 import com.farmerbb.secondscreen.service.DisplayConnectionService;
 import com.farmerbb.secondscreen.service.SafeModeToggleService;
+import com.farmerbb.secondscreen.util.RootHelperClient;
 import com.farmerbb.secondscreen.util.U;
 
 import java.io.File;
@@ -102,6 +103,7 @@ public final class SettingsFragment extends PreferenceFragment implements OnPref
         editor.putBoolean("safe_mode", prefMain.getBoolean("safe_mode", false));
         editor.putBoolean("hdmi", prefMain.getBoolean("hdmi", true));
         editor.putBoolean("expert_mode", prefMain.getBoolean("expert_mode", false));
+        editor.putBoolean("root_helper", prefMain.getBoolean("root_helper", false));
         editor.apply();
 
         if(addPrefs) {
@@ -191,11 +193,16 @@ public final class SettingsFragment extends PreferenceFragment implements OnPref
         else
             getActivity().stopService(serviceIntent);
 
+        // Stop the resident root helper if it has been turned off
+        if(!prefNew.getBoolean("root_helper", false) && prefMain.getBoolean("root_helper", false))
+            RootHelperClient.shutdown(getActivity());
+
         // Save settings
         SharedPreferences.Editor editor = prefMain.edit();
         editor.putBoolean("safe_mode", prefNew.getBoolean("safe_mode", false));
         editor.putBoolean("hdmi", prefNew.getBoolean("hdmi", true));
         editor.putBoolean("expert_mode", prefNew.getBoolean("expert_mode", false));
+        editor.putBoolean("root_helper", prefNew.getBoolean("root_helper", false));
         editor.apply();
 
         // Cleanup
@@ -203,6 +210,7 @@ public final class SettingsFragment extends PreferenceFragment implements OnPref
         prefNewEditor.remove("safe_mode");
         prefNewEditor.remove("hdmi");
         prefNewEditor.remove("expert_mode");
+        prefNewEditor.remove("root_helper");
         prefNewEditor.apply();
     }
 
@@ -0,0 +1,239 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.helper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Wire format spoken between the app (RootHelperClient) and the resident RootHelper.
+// Each connection carries one batch:
+//
+//   app:    VERSION, class path of the app, number of requests, then each request
+//   helper: one response per request, in order, as soon as each request has been handled
+//
+// A request is a type, its arguments, and the shell command it stands for.  Requests the helper
+// can carry out in-process are typed; anything else (or anything that fails in-process) is run
+// through a root shell owned by the helper, so the command line is always sent along as well.
+public final class HelperProtocol {
+
+    // Name of the socket, in the abstract namespace
+    public static final String SOCKET_NAME = "com.farmerbb.secondscreen.ROOT_HELPER";
+
+    // Bumped whenever the wire format or the meaning of a request changes
+    public static final int VERSION = 4;
+
+    // Request types
+    public static final int TYPE_SHELL = 0;
+    public static final int TYPE_PING = 1;
+    public static final int TYPE_EXIT = 2;
+    public static final int TYPE_FORCE_STOP = 3;
+    public static final int TYPE_KEYEVENT = 4;
+    public static final int TYPE_DISPLAY = 5;
+    public static final int TYPE_SETTINGS = 6;
+    public static final int TYPE_SYSFS = 7;
+
+    // Response codes
+    public static final int CODE_OK = 0;            // Carried out in-process
+    public static final int CODE_SHELL = 1;         // Run through the helper's shell; see exitCode
+    public static final int CODE_FAILED = 2;        // Could not be carried out at all
+    public static final int CODE_BAD_VERSION = 4;   // Helper is from a different build of the app, and is exiting
+
+    private static final Pattern FORCE_STOP = Pattern.compile("am force-stop ([A-Za-z0-9_.]+)");
+    private static final Pattern KEYEVENT = Pattern.compile("input keyevent ([0-9]+)");
+    private static final Pattern SETTINGS = Pattern.compile("settings put (system|secure|global) (\\S+) (\\S+)");
+    private static final Pattern SYSFS = Pattern.compile("echo (-?[0-9]+) > (/sys/\\S+)");
+    private static final Pattern DISPLAY = Pattern.compile(": ss_display (\\S+) (\\S+) (\\S+); .*", Pattern.DOTALL);
+
+    // Argument of a display request for a value that is to be left alone
+    public static final String UNCHANGED = "-";
+
+    private HelperProtocol() {}
+
+    // True if running the command a second time does no harm: settings, sysfs values and
+    // display settings just end up set to the same value again
+    public static boolean isIdempotent(String command) {
+        switch(Request.parse(command).type) {
+            case TYPE_SETTINGS:
+            case TYPE_SYSFS:
+            case TYPE_DISPLAY:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    public static final class Request {
+        public final int type;
+        public final String[] args;
+        public final String command;
+
+        Request(int type, String command, String... args) {
+            this.type = type;
+            this.command = command;
+            this.args = args;
+        }
+
+        // Works out the typed request for a command line.  Commands that aren't recognised
+        // (including compound ones) are run through the shell as they are.
+        public static Request parse(String command) {
+            Matcher matcher = FORCE_STOP.matcher(command);
+            if(matcher.matches())
+                return new Request(TYPE_FORCE_STOP, command, matcher.group(1));
+
+            matcher = KEYEVENT.matcher(command);
+            if(matcher.matches())
+                return new Request(TYPE_KEYEVENT, command, matcher.group(1));
+
+            matcher = SETTINGS.matcher(command);
+            if(matcher.matches())
+                return new Request(TYPE_SETTINGS, command, matcher.group(1), matcher.group(2), matcher.group(3));
+
+            matcher = SYSFS.matcher(command);
+            if(matcher.matches())
+                return new Request(TYPE_SYSFS, command, matcher.group(2), matcher.group(1));
+
+            matcher = DISPLAY.matcher(command);
+            if(matcher.matches())
+                return new Request(TYPE_DISPLAY, command, matcher.group(1), matcher.group(2), matcher.group(3));
+
+            return new Request(TYPE_SHELL, command);
+        }
+
+        // Merges settings requests into one, so that they are all written in one go.
+        // The response has one line of output per merged request, with its exit code.
+        public static Request merge(List<Request> requests) {
+            List<String> args = new ArrayList<>();
+            String command = "";
+
+            for(Request request : requests) {
+                for(String arg : request.args) {
+                    args.add(arg);
+                }
+
+                command = command + (command.equals("") ? "" : "; ") + request.command;
+            }
+
+            return new Request(TYPE_SETTINGS, command, args.toArray(new String[args.size()]));
+        }
+
+        public static Request ping() {
+            return new Request(TYPE_PING, "");
+        }
+
+        public static Request exit() {
+            return new Request(TYPE_EXIT, "");
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(type);
+            out.writeUTF(command);
+            out.writeInt(args.length);
+            for(String arg : args) {
+                out.writeUTF(arg);
+            }
+        }
+
+        static Request read(DataInputStream in) throws IOException {
+            int type = in.readInt();
+            String command = in.readUTF();
+            String[] args = new String[in.readInt()];
+            for(int i = 0; i < args.length; i++) {
+                args[i] = in.readUTF();
+            }
+
+            return new Request(type, command, args);
+        }
+    }
+
+    public static final class Response {
+        public final int code;
+        public final int exitCode;
+        public final List<String> output;
+
+        Response(int code, int exitCode, List<String> output) {
+            this.code = code;
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        // Exit code in the same terms as a shell command, for callers that don't care how
+        // the request was carried out
+        public int getExitCode() {
+            switch(code) {
+                case CODE_OK:
+                    return 0;
+                case CODE_SHELL:
+                    return exitCode;
+                default:
+                    return 1;
+            }
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(code);
+            out.writeInt(exitCode);
+            out.writeInt(output.size());
+            for(String line : output) {
+                out.writeUTF(line);
+            }
+        }
+
+        static Response read(DataInputStream in) throws IOException {
+            int code = in.readInt();
+            int exitCode = in.readInt();
+            List<String> output = new ArrayList<>();
+            for(int i = in.readInt(); i > 0; i--) {
+                output.add(in.readUTF());
+            }
+
+            return new Response(code, exitCode, output);
+        }
+    }
+
+    // Command that applies the resolution, density and overscan in one go.  Each value is in the
+    // form taken by "wm size", "wm density" and "wm overscan" (including "reset"), or null to leave
+    // it alone.  The helper recognises the leading no-op (":"), and makes the window manager calls
+    // itself; everywhere else, the given shell commands are run instead.
+    public static String displayCommand(String size, String density, String overscan, String fallback) {
+        return ": ss_display "
+                + (size == null ? UNCHANGED : size) + " "
+                + (density == null ? UNCHANGED : density) + " "
+                + (overscan == null ? UNCHANGED : overscan) + "; "
+                + fallback;
+    }
+
+    // Sends a batch of requests
+    public static void writeBatch(DataOutputStream out, String classPath, List<Request> requests) throws IOException {
+        out.writeInt(VERSION);
+        out.writeUTF(classPath);
+        out.writeInt(requests.size());
+        for(Request request : requests) {
+            request.write(out);
+        }
+
+        out.flush();
+    }
+
+    public static Response readResponse(DataInputStream in) throws IOException {
+        return Response.read(in);
+    }
+}
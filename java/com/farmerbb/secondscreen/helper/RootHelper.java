@@ -0,0 +1,621 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.helper;
+
+import android.graphics.Point;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.IBinder;
+import android.os.SystemClock;
+import android.view.InputDevice;
+import android.view.InputEvent;
+import android.view.KeyCharacterMap;
+import android.view.KeyEvent;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+// Resident root helper.  Started once through su with app_process, using the app's own APK as the
+// class path (see RootHelperClient), so it runs as root inside a Dalvik/ART VM that stays up.
+// The resolution, density and overscan are applied with direct window manager calls, all in one
+// request (see HelperProtocol.displayCommand()), and read back before the response is sent.
+// Runs of "settings put" commands are written through one settings provider connection.
+// Writes to sysfs nodes (backlight, vibration) go through a file descriptor that is opened on
+// first use and then kept open for as long as the helper runs.
+// Every "am", "wm", "settings" or "input" command run through su starts a VM of its own, which
+// takes a few hundred milliseconds; requests the helper understands are instead carried out
+// in-process, through the same framework calls those commands make.  Everything else is run
+// through a root shell owned by the helper, one per connection, so shell variables carry over
+// between the commands of a batch just like on a pooled root session.
+//
+// Only the app's own uid (or root) may connect.  The helper exits once it has been idle for
+// IDLE_TIMEOUT, or when a client from a different build of the app connects.
+public final class RootHelper {
+
+    private static final long IDLE_TIMEOUT = 300000;
+
+    // Same as CommandVerifier: how many times a display value is set before giving up,
+    // and the prefix of the report printed for each one
+    private static final int MAX_ATTEMPTS = 3;
+    private static final String REPORT = "ss_verify ";
+
+    // Display.DEFAULT_DISPLAY, and UserHandle.USER_CURRENT
+    private static final int DISPLAY = 0;
+    private static final int USER_CURRENT = -2;
+
+    private static final Object lock = new Object();
+    private static int connections = 0;
+    private static long lastUsed = 0;
+
+    // Open sysfs nodes, by path
+    private static final Map<String, FileOutputStream> nodes = new HashMap<>();
+
+    private static int allowedUid;
+    private static String classPath;
+
+    private RootHelper() {}
+
+    // Arguments: uid of the app
+    public static void main(String[] args) {
+        allowedUid = Integer.parseInt(args[0]);
+        classPath = System.getProperty("java.class.path");
+
+        LocalServerSocket server;
+        try {
+            server = new LocalServerSocket(HelperProtocol.SOCKET_NAME);
+        } catch (IOException e) {
+            // Another helper is already running
+            return;
+        }
+
+        touch();
+        startIdleWatchdog();
+
+        while(true) {
+            final LocalSocket socket;
+            try {
+                socket = server.accept();
+            } catch (IOException e) {
+                continue;
+            }
+
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    handle(socket);
+                }
+            }, "RootHelper");
+            thread.start();
+        }
+    }
+
+    private static void handle(LocalSocket socket) {
+        synchronized(lock) {
+            connections++;
+        }
+
+        Shell shell = new Shell();
+
+        try {
+            Credentials credentials = socket.getPeerCredentials();
+            if(credentials.getUid() != allowedUid && credentials.getUid() != 0)
+                return;
+
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+
+            int version = in.readInt();
+            String clientClassPath = in.readUTF();
+            int count = in.readInt();
+
+            // The app has been updated (or downgraded) since this helper was started
+            if(version != HelperProtocol.VERSION || !clientClassPath.equals(classPath)) {
+                for(int i = 0; i < count; i++) {
+                    new HelperProtocol.Response(HelperProtocol.CODE_BAD_VERSION, -1, new ArrayList<String>()).write(out);
+                }
+
+                out.flush();
+                System.exit(0);
+            }
+
+            for(int i = 0; i < count; i++) {
+                HelperProtocol.Request request = HelperProtocol.Request.read(in);
+
+                if(request.type == HelperProtocol.TYPE_EXIT) {
+                    new HelperProtocol.Response(HelperProtocol.CODE_OK, 0, new ArrayList<String>()).write(out);
+                    out.flush();
+                    System.exit(0);
+                }
+
+                HelperProtocol.Response response;
+                if(request.type == HelperProtocol.TYPE_SETTINGS)
+                    response = putSettings(request.args, shell);
+                else {
+                    response = handleInProcess(request, shell);
+                    if(response == null)
+                        response = shell.run(request.command);
+                }
+
+                response.write(out);
+                out.flush();
+            }
+        } catch (IOException e) {
+            // Client went away
+        } finally {
+            shell.close();
+
+            try {
+                socket.close();
+            } catch (IOException e) { /* ignore */ }
+
+            synchronized(lock) {
+                connections--;
+            }
+
+            touch();
+        }
+    }
+
+    // Carries out a request in-process.  Returns null if it should be run through the shell instead.
+    private static HelperProtocol.Response handleInProcess(HelperProtocol.Request request, Shell shell) {
+        List<String> output = new ArrayList<>();
+
+        try {
+            switch(request.type) {
+                case HelperProtocol.TYPE_PING:
+                    break;
+                case HelperProtocol.TYPE_FORCE_STOP:
+                    forceStop(request.args[0]);
+                    break;
+                case HelperProtocol.TYPE_KEYEVENT:
+                    injectKeyEvent(Integer.parseInt(request.args[0]));
+                    break;
+                case HelperProtocol.TYPE_DISPLAY:
+                    return applyDisplay(request.args[0], request.args[1], request.args[2], shell);
+                case HelperProtocol.TYPE_SYSFS:
+                    writeNode(request.args[0], request.args[1]);
+                    break;
+                default:
+                    return null;
+            }
+
+            return new HelperProtocol.Response(HelperProtocol.CODE_OK, 0, output);
+        } catch (Exception e) {
+            // Hidden APIs differ between releases and vendors; the command line always works
+            return request.command.equals("")
+                    ? new HelperProtocol.Response(HelperProtocol.CODE_FAILED, -1, new ArrayList<String>())
+                    : null;
+        }
+    }
+
+    // Same as "echo <value> > <path>".  If writing to a descriptor that has been open for a while
+    // fails (the node may have been re-created), it is reopened and the write is tried once more.
+    private static void writeNode(String path, String value) throws IOException {
+        byte[] bytes = (value + "\n").getBytes();
+
+        synchronized(nodes) {
+            FileOutputStream node = nodes.get(path);
+            if(node != null) {
+                try {
+                    node.getChannel().position(0);
+                    node.write(bytes);
+                    return;
+                } catch (IOException e) {
+                    nodes.remove(path);
+                    try {
+                        node.close();
+                    } catch (IOException e2) { /* ignore */ }
+                }
+            }
+
+            node = new FileOutputStream(path);
+            node.write(bytes);
+            nodes.put(path, node);
+        }
+    }
+
+    // Same as "am force-stop", which stops the package for all users
+    private static void forceStop(String packageName) throws Exception {
+        Object am = getActivityManager();
+
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+            Method method = am.getClass().getMethod("forceStopPackage", String.class, int.class);
+            method.invoke(am, packageName, -1);
+        } else {
+            Method method = am.getClass().getMethod("forceStopPackage", String.class);
+            method.invoke(am, packageName);
+        }
+    }
+
+    private static Object getActivityManager() throws Exception {
+        try {
+            return Class.forName("android.app.ActivityManager").getMethod("getService").invoke(null);
+        } catch (NoSuchMethodException e) {
+            return Class.forName("android.app.ActivityManagerNative").getMethod("getDefault").invoke(null);
+        }
+    }
+
+    // Same as "input keyevent": a key down followed by a key up, waiting for both to be handled
+    private static void injectKeyEvent(int keyCode) throws Exception {
+        Class<?> inputManager = Class.forName("android.hardware.input.InputManager");
+        Object im = inputManager.getMethod("getInstance").invoke(null);
+        Method inject = inputManager.getMethod("injectInputEvent", InputEvent.class, int.class);
+
+        long now = SystemClock.uptimeMillis();
+        KeyEvent down = new KeyEvent(now, now, KeyEvent.ACTION_DOWN, keyCode, 0, 0,
+                KeyCharacterMap.VIRTUAL_KEYBOARD, 0, 0, InputDevice.SOURCE_KEYBOARD);
+
+        // INJECT_INPUT_EVENT_MODE_WAIT_FOR_FINISH
+        inject.invoke(im, down, 2);
+        inject.invoke(im, KeyEvent.changeAction(down, KeyEvent.ACTION_UP), 2);
+    }
+
+    // Same as "wm density", "wm size" and "wm overscan" (in the order the plan runs them in),
+    // each retried until it has taken effect.  The values that are in effect afterwards are
+    // added to the output as "ss_display <size> <density>".
+    // Overscan support was dropped from the window manager in later releases; if it can't be set
+    // in-process, only "wm overscan" is run through the shell, as density and size are already set.
+    // Anything that fails before then makes the whole request fall back to the shell.
+    private static HelperProtocol.Response applyDisplay(String size, String density, String overscan, Shell shell) throws Exception {
+        List<String> output = new ArrayList<>();
+        HelperProtocol.Response overscanResponse = null;
+        Object wm = getWindowManager();
+
+        // Looked up before anything is changed
+        int[] overscanValues = null;
+        Method setOverscan = null;
+        if(!HelperProtocol.UNCHANGED.equals(overscan)) {
+            overscanValues = parseOverscan(overscan);
+
+            try {
+                setOverscan = wm.getClass().getMethod("setOverscan", int.class, int.class, int.class, int.class, int.class);
+            } catch (NoSuchMethodException e) { /* set through the shell */ }
+        }
+
+        if(!HelperProtocol.UNCHANGED.equals(density)) {
+            int attempts = -1;
+            for(int attempt = 1; attempt <= MAX_ATTEMPTS && attempts == -1; attempt++) {
+                setDensity(wm, density);
+                if(densityApplied(wm, density))
+                    attempts = attempt;
+            }
+
+            output.add(REPORT + "DENSITY " + Integer.toString(attempts));
+        }
+
+        if(!HelperProtocol.UNCHANGED.equals(size)) {
+            int attempts = -1;
+            for(int attempt = 1; attempt <= MAX_ATTEMPTS && attempts == -1; attempt++) {
+                setSize(wm, size);
+                if(sizeApplied(wm, size))
+                    attempts = attempt;
+            }
+
+            output.add(REPORT + "SIZE " + Integer.toString(attempts));
+        }
+
+        if(overscanValues != null) {
+            boolean applied = false;
+            if(setOverscan != null) {
+                try {
+                    setOverscan.invoke(wm, DISPLAY, overscanValues[0], overscanValues[1], overscanValues[2], overscanValues[3]);
+                    applied = true;
+                } catch (Exception e) { /* set through the shell */ }
+            }
+
+            if(!applied) {
+                overscanResponse = shell.run("wm overscan " + overscan);
+                output.addAll(overscanResponse.output);
+            }
+        }
+
+        Point base = getDisplaySize(wm, "getBaseDisplaySize");
+        output.add("ss_display " + Integer.toString(base.x) + "x" + Integer.toString(base.y)
+                + " " + Integer.toString(getDensity(wm, "getBaseDisplayDensity")));
+
+        return overscanResponse == null
+                ? new HelperProtocol.Response(HelperProtocol.CODE_OK, 0, output)
+                : new HelperProtocol.Response(overscanResponse.code, overscanResponse.exitCode, output);
+    }
+
+    private static Object getWindowManager() throws Exception {
+        IBinder binder = (IBinder) Class.forName("android.os.ServiceManager")
+                .getMethod("getService", String.class).invoke(null, "window");
+
+        return Class.forName("android.view.IWindowManager$Stub")
+                .getMethod("asInterface", IBinder.class).invoke(null, binder);
+    }
+
+    // size is "reset", or "<width>x<height>"
+    private static void setSize(Object wm, String size) throws Exception {
+        if("reset".equals(size))
+            wm.getClass().getMethod("clearForcedDisplaySize", int.class).invoke(wm, DISPLAY);
+        else {
+            String[] dimensions = size.split("x");
+            wm.getClass().getMethod("setForcedDisplaySize", int.class, int.class, int.class)
+                    .invoke(wm, DISPLAY, Integer.parseInt(dimensions[0]), Integer.parseInt(dimensions[1]));
+        }
+    }
+
+    private static boolean sizeApplied(Object wm, String size) throws Exception {
+        Point base = getDisplaySize(wm, "getBaseDisplaySize");
+
+        if("reset".equals(size)) {
+            Point initial = getDisplaySize(wm, "getInitialDisplaySize");
+            return base.x == initial.x && base.y == initial.y;
+        } else
+            return size.equals(Integer.toString(base.x) + "x" + Integer.toString(base.y));
+    }
+
+    private static Point getDisplaySize(Object wm, String method) throws Exception {
+        Point point = new Point();
+        wm.getClass().getMethod(method, int.class, Point.class).invoke(wm, DISPLAY, point);
+        return point;
+    }
+
+    // density is "reset", or a number.  Android 7.0 and later keep the density per user.
+    private static void setDensity(Object wm, String density) throws Exception {
+        boolean reset = "reset".equals(density);
+
+        try {
+            if(reset)
+                wm.getClass().getMethod("clearForcedDisplayDensityForUser", int.class, int.class)
+                        .invoke(wm, DISPLAY, USER_CURRENT);
+            else
+                wm.getClass().getMethod("setForcedDisplayDensityForUser", int.class, int.class, int.class)
+                        .invoke(wm, DISPLAY, Integer.parseInt(density), USER_CURRENT);
+        } catch (NoSuchMethodException e) {
+            if(reset)
+                wm.getClass().getMethod("clearForcedDisplayDensity", int.class).invoke(wm, DISPLAY);
+            else
+                wm.getClass().getMethod("setForcedDisplayDensity", int.class, int.class)
+                        .invoke(wm, DISPLAY, Integer.parseInt(density));
+        }
+    }
+
+    private static boolean densityApplied(Object wm, String density) throws Exception {
+        int base = getDensity(wm, "getBaseDisplayDensity");
+
+        if("reset".equals(density))
+            return base == getDensity(wm, "getInitialDisplayDensity");
+        else
+            return base == Integer.parseInt(density);
+    }
+
+    private static int getDensity(Object wm, String method) throws Exception {
+        return (Integer) wm.getClass().getMethod(method, int.class).invoke(wm, DISPLAY);
+    }
+
+    // overscan is "reset", or the argument to "wm overscan", which reads it as "left,top,right,bottom"
+    private static int[] parseOverscan(String overscan) {
+        int[] values = new int[4];
+
+        if(!"reset".equals(overscan)) {
+            String[] parts = overscan.split(",");
+            for(int i = 0; i < values.length; i++) {
+                values[i] = Integer.parseInt(parts[i]);
+            }
+        }
+
+        return values;
+    }
+
+    // Same as running "settings put <table> <key> <value>" for each triple of arguments, but
+    // through a single connection to the settings provider.  Any key that can't be written that
+    // way is written with the "settings" command instead.  The output has the exit code for
+    // each key, in order.
+    private static HelperProtocol.Response putSettings(String[] args, Shell shell) throws IOException {
+        List<String> output = new ArrayList<>();
+
+        SettingsConnection settings = null;
+        try {
+            settings = SettingsConnection.open();
+        } catch (Exception e) { /* use the command instead */ }
+
+        for(int i = 0; i + 2 < args.length; i += 3) {
+            int exitCode = -1;
+
+            if(settings != null) {
+                try {
+                    settings.put(args[i], args[i + 1], args[i + 2]);
+                    exitCode = 0;
+                } catch (Exception e) { /* use the command instead */ }
+            }
+
+            if(exitCode != 0)
+                exitCode = shell.run("settings put " + args[i] + " " + args[i + 1] + " " + args[i + 2]).getExitCode();
+
+            output.add(Integer.toString(exitCode));
+        }
+
+        if(settings != null)
+            settings.close();
+
+        return new HelperProtocol.Response(HelperProtocol.CODE_OK, 0, output);
+    }
+
+    private static void touch() {
+        synchronized(lock) {
+            lastUsed = SystemClock.elapsedRealtime();
+        }
+    }
+
+    private static void startIdleWatchdog() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(true) {
+                    SystemClock.sleep(IDLE_TIMEOUT / 10);
+
+                    synchronized(lock) {
+                        if(connections == 0 && SystemClock.elapsedRealtime() - lastUsed >= IDLE_TIMEOUT)
+                            System.exit(0);
+                    }
+                }
+            }
+        }, "RootHelperIdle");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // A connection to the settings provider, made the same way the "settings" command makes it.
+    // The hidden APIs involved have changed shape a few times; they are matched by parameter count.
+    private static final class SettingsConnection {
+        private static final String AUTHORITY = "settings";
+
+        private final Object am;
+        private final IBinder token;
+        private final Object provider;
+        private final Method call;
+
+        private SettingsConnection(Object am, IBinder token, Object provider, Method call) {
+            this.am = am;
+            this.token = token;
+            this.provider = provider;
+            this.call = call;
+        }
+
+        static SettingsConnection open() throws Exception {
+            Object am = getActivityManager();
+            IBinder token = new Binder();
+            Object holder = null;
+
+            for(Method method : am.getClass().getMethods()) {
+                if(!method.getName().equals("getContentProviderExternal"))
+                    continue;
+
+                // (name, userId, token), and from Android 10 also a tag
+                switch(method.getParameterTypes().length) {
+                    case 3:
+                        holder = method.invoke(am, AUTHORITY, 0, token);
+                        break;
+                    case 4:
+                        holder = method.invoke(am, AUTHORITY, 0, token, null);
+                        break;
+                }
+            }
+
+            if(holder == null)
+                throw new IllegalStateException();
+
+            Object provider = holder.getClass().getField("provider").get(holder);
+
+            for(Method method : provider.getClass().getMethods()) {
+                Class<?>[] types = method.getParameterTypes();
+                if(method.getName().equals("call")
+                        && types.length >= 3 && types.length <= 6
+                        && (types.length == 3 || types[0] == String.class))
+                    return new SettingsConnection(am, token, provider, method);
+            }
+
+            throw new IllegalStateException();
+        }
+
+        void put(String table, String key, String value) throws Exception {
+            String method = "PUT_" + table;
+            Bundle extras = new Bundle();
+            extras.putString("value", value);
+
+            // The calling package is "root", as it is for the "settings" command when run as root
+            switch(call.getParameterTypes().length) {
+                case 3:
+                    call.invoke(provider, method, key, extras);
+                    break;
+                case 4:
+                    call.invoke(provider, "root", method, key, extras);
+                    break;
+                case 5:
+                    call.invoke(provider, "root", AUTHORITY, method, key, extras);
+                    break;
+                case 6:
+                    call.invoke(provider, "root", null, AUTHORITY, method, key, extras);
+                    break;
+            }
+        }
+
+        void close() {
+            try {
+                am.getClass().getMethod("removeContentProviderExternal", String.class, IBinder.class)
+                        .invoke(am, AUTHORITY, token);
+            } catch (Exception e) { /* released when the helper exits */ }
+        }
+    }
+
+    // A root shell (the helper already runs as root), fed one command at a time, and only started
+    // once the first command comes in.  Each command is followed by an echo of a marker and its
+    // exit code, so its output can be told apart from the next one's.  stderr is discarded, like
+    // on the pooled root sessions.
+    private static final class Shell {
+        private Process process;
+        private OutputStream stdin;
+        private BufferedReader stdout;
+        private final String marker = UUID.randomUUID().toString();
+
+        HelperProtocol.Response run(String command) throws IOException {
+            if(process == null) {
+                process = new ProcessBuilder("sh").start();
+                stdin = process.getOutputStream();
+                stdout = new BufferedReader(new InputStreamReader(process.getInputStream()));
+
+                stdin.write("exec 2>/dev/null\n".getBytes("UTF-8"));
+            }
+
+            String script = command + "\necho \"" + marker + " $?\"\n";
+            stdin.write(script.getBytes("UTF-8"));
+            stdin.flush();
+
+            List<String> output = new ArrayList<>();
+            String line;
+            while((line = stdout.readLine()) != null) {
+                // The command's output may not have ended with a newline
+                int index = line.indexOf(marker);
+                if(index != -1) {
+                    if(index > 0)
+                        output.add(line.substring(0, index));
+
+                    int exitCode = Integer.parseInt(line.substring(index + marker.length()).trim());
+                    return new HelperProtocol.Response(HelperProtocol.CODE_SHELL, exitCode, output);
+                }
+
+                output.add(line);
+            }
+
+            // The shell died (for example, the command was "exit")
+            return new HelperProtocol.Response(HelperProtocol.CODE_FAILED, -1, output);
+        }
+
+        void close() {
+            if(process != null)
+                process.destroy();
+        }
+    }
+}
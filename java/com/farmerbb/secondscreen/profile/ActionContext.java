@@ -0,0 +1,79 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.SharedPreferences;
+
+// Everything an action needs to work out the current and target state of its option.
+// When turning a profile off, there is no target profile (target is null).
+final class ActionContext {
+    final Context context;
+    final SharedPreferences prefMain;
+    final SharedPreferences.Editor editor;
+
+    // Contents of current.xml
+    final CurrentState current;
+
+    // Profile being loaded
+    final ProfileState target;
+
+    // True if a profile is already active (as opposed to loading one from the system's default state)
+    final boolean active;
+
+    // Record of the actions applied since the first profile was loaded
+    // (null when planning a boot, or turning off a profile loaded without a journal)
+    Journal journal;
+
+    private SettingsSnapshot settings;
+
+    ActionContext(Context context, SharedPreferences prefMain, CurrentState current,
+                  ProfileState target, SharedPreferences.Editor editor) {
+        this.context = context;
+        this.prefMain = prefMain;
+        this.current = current;
+        this.target = target;
+        this.editor = editor;
+        this.active = current.active;
+    }
+
+    ContentResolver getContentResolver() {
+        return context.getContentResolver();
+    }
+
+    // System settings as they were when first needed while planning
+    SettingsSnapshot getSettings() {
+        if(settings == null)
+            settings = SettingsSnapshot.read(getContentResolver());
+
+        return settings;
+    }
+
+    boolean isLoading() {
+        return target != null;
+    }
+
+    // True if the UI will be refreshed by restarting the ActivityManager, in which case
+    // size and density are changed through the safe mode settings instead
+    boolean restartsActivityManager() {
+        if(isLoading())
+            return target.uiRefresh == ProfileState.UiRefresh.ACTIVITY_MANAGER;
+        else
+            return current.profile.uiRefresh == ProfileState.UiRefresh.ACTIVITY_MANAGER
+                    || current.profile.uiRefresh == ProfileState.UiRefresh.ACTIVITY_MANAGER_SAFE_MODE;
+    }
+}
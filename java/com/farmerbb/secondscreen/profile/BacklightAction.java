@@ -0,0 +1,145 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.Context;
+import android.hardware.display.DisplayManager;
+import android.provider.Settings;
+import android.view.Display;
+
+import com.farmerbb.secondscreen.util.ReadinessProbe;
+import com.farmerbb.secondscreen.util.SysfsWriter;
+import com.farmerbb.secondscreen.util.U;
+
+import java.io.File;
+
+// Turns the device's backlight off while an external display is connected.
+// Must come after the UI refresh action, as the backlight command waits for the backlight to settle
+// if there is no UI refresh.
+final class BacklightAction extends ProfileAction<Boolean> {
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.backlightOff;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.backlightOff;
+    }
+
+    // Always re-evaluated while the backlight is off, as whether to dim the screen
+    // depends on whether screen mirroring is active
+    @Override
+    boolean differs(ActionContext c, Boolean current, Boolean target) {
+        return target || c.current.backlightValue != -1;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        if(!target) {
+            // Restore the value saved before any profiles were applied, then invalidate it
+            restore(c, plan);
+            c.editor.putInt("backlight_value", -1);
+            return;
+        }
+
+        // Save current auto-brightness and backlight values for future use,
+        // if the current state of "backlight off" is false
+        if(!current) {
+            SettingsSnapshot settings = c.getSettings();
+
+            if(settings.screenBrightnessMode != null)
+                c.editor.putInt("auto_brightness", settings.screenBrightnessMode);
+
+            if(settings.screenBrightness != null)
+                c.editor.putInt("backlight_value", settings.screenBrightness);
+        }
+
+        if(c.target.uiRefresh == ProfileState.UiRefresh.ACTIVITY_MANAGER)
+            return;
+
+        DisplayManager dm = (DisplayManager) c.context.getSystemService(Context.DISPLAY_SERVICE);
+        Display[] displays = dm.getDisplays();
+
+        if(displays[displays.length - 1].getDisplayId() == Display.DEFAULT_DISPLAY)
+            return;
+
+        // Check to see if Chromecast screen mirroring is active.
+        // If it is, and user has "Restart SystemUI" as their UI refresh method,
+        // then don't immediately dim the screen.
+        // However, if we are currently using Chromecast screen mirroring
+        // and we are switching to a different profile that uses the
+        // "Restart SystemUI" UI refresh method, then temporarily undim the screen.
+        if(U.castScreenActive(c.context)
+                && c.target.uiRefresh == ProfileState.UiRefresh.SYSTEM_UI
+                && UiRefreshAction.isNeeded(c, plan)) {
+            if(current)
+                restore(c, plan);
+        } else {
+            // Delay the backlight command if the UI isn't being refreshed
+            turnOff(c, plan, current ? null : SysfsWriter.getBacklight(), !plan.hasCommand(Slot.UI_REFRESH));
+        }
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("backlight_off", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.backlightOff)
+            restore(c, plan);
+    }
+
+    @Override
+    void reapply(ActionContext c, Plan plan) {
+        if(c.current.profile.backlightOff)
+            turnOff(c, plan, SysfsWriter.getBacklight(), true);
+    }
+
+    // Dims the screen, then writes 0 to the given backlight file (if any).  If delay is true,
+    // the write waits for the backlight to settle, so the dimming doesn't overwrite it.
+    private void turnOff(ActionContext c, Plan plan, File backlightOff, boolean delay) {
+        // Turn auto-brightness off so it doesn't mess with things
+        plan.putSetting(Plan.Table.SYSTEM, Settings.System.SCREEN_BRIGHTNESS_MODE, Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL);
+
+        // Attempt to set screen brightness to 0 first to avoid complications later
+        plan.putSetting(Plan.Table.SYSTEM, Settings.System.SCREEN_BRIGHTNESS, 0);
+
+        if(backlightOff != null)
+            plan.setCommand(Slot.BACKLIGHT, (delay ? ReadinessProbe.waitForBacklight(c.context, backlightOff) : "")
+                    + SysfsWriter.writeCommand(backlightOff, 0));
+    }
+
+    // Restore the saved values for backlight and auto-brightness
+    private void restore(ActionContext c, Plan plan) {
+        int backlightValue = c.current.backlightValue;
+        if(backlightValue == -1)
+            return;
+
+        if(backlightValue <= 10) {
+            // Manually update the sysfs value to guarantee that the backlight will restore
+            File backlightOff = SysfsWriter.getBacklight();
+            if(backlightOff != null)
+                plan.setCommand(Slot.BACKLIGHT, SysfsWriter.writeCommand(backlightOff, backlightValue));
+        }
+
+        plan.putSetting(Plan.Table.SYSTEM, Settings.System.SCREEN_BRIGHTNESS, backlightValue);
+        plan.putSetting(Plan.Table.SYSTEM, Settings.System.SCREEN_BRIGHTNESS_MODE, c.current.autoBrightness);
+    }
+}
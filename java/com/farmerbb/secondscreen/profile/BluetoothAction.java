@@ -0,0 +1,63 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.pm.PackageManager;
+
+// Turns Bluetooth on while the profile is active
+final class BluetoothAction extends ProfileAction<Boolean> {
+
+    @Override
+    boolean isSupported(ActionContext c) {
+        return c.context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH)
+                && BluetoothAdapter.getDefaultAdapter() != null;
+    }
+
+    @Override
+    void capture(ActionContext c) {
+        c.editor.putBoolean("bluetooth_on_system", BluetoothAdapter.getDefaultAdapter().isEnabled());
+    }
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.bluetooth;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.bluetooth;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        if(target)
+            plan.setBluetooth(true);
+        else
+            plan.setBluetooth(c.current.bluetoothSystem);
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("bluetooth_on", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.bluetooth)
+            plan.setBluetooth(c.current.bluetoothSystem);
+    }
+}
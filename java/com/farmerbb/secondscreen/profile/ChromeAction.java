@@ -0,0 +1,90 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.PackageManager.NameNotFoundException;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Enables the desktop mode command line flags in Chrome
+final class ChromeAction extends ProfileAction<Boolean> {
+
+    private String chromeVersion = " ";
+    private int channel = 0;
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.chrome;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.chrome;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        getChromeVersion(c);
+
+        if(target)
+            plan.setCommand(Slot.CHROME, U.chromeCommand(chromeVersion));
+        else
+            plan.setCommand(Slot.CHROME, U.chromeCommandRemove);
+
+        plan.setCommand(Slot.CHROME_2, U.chromeCommand2(channel));
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("chrome", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.chrome) {
+            getChromeVersion(c);
+
+            plan.setCommand(Slot.CHROME, U.chromeCommandRemove);
+            plan.setCommand(Slot.CHROME_2, U.chromeCommand2(channel));
+        }
+    }
+
+    // If multiple versions of Chrome are installed on the device,
+    // assume that the user is running the newest version.
+    private void getChromeVersion(ActionContext c) {
+        PackageManager pm = c.context.getPackageManager();
+        PackageInfo pInfo;
+
+        try {
+            pInfo = pm.getPackageInfo("com.chrome.dev", 0);
+            chromeVersion = pInfo.versionName;
+            channel = 2;
+        } catch (NameNotFoundException e) {
+            try {
+                pInfo = pm.getPackageInfo("com.chrome.beta", 0);
+                chromeVersion = pInfo.versionName;
+                channel = 1;
+            } catch (NameNotFoundException e1) {
+                try {
+                    pInfo = pm.getPackageInfo("com.android.chrome", 0);
+                    chromeVersion = pInfo.versionName;
+                } catch (NameNotFoundException e2) {}
+            }
+        }
+    }
+}
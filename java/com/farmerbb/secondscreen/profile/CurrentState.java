@@ -0,0 +1,85 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.provider.Settings;
+import android.view.Surface;
+
+// The contents of current.xml, parsed once: whether a profile is active, the options it applied,
+// and the system state captured before the first profile was loaded (which is what turning the
+// profile off restores).  Every key has a single default, defined here.
+final class CurrentState {
+
+    // True if a profile is active
+    final boolean active;
+
+    // Options applied by the active profile
+    final ProfileState profile;
+
+    // System state captured before the first profile was loaded
+    final boolean bluetoothSystem;
+    final boolean wifiSystem;
+    final boolean daydreamsSystem;
+    final boolean daydreamsWhileChargingSystem;
+    final boolean showTouchesSystem;
+    final boolean navbarSystem;
+    final int screenTimeoutSystem;
+    final int stayOnWhilePluggedInSystem;
+    final int userRotation;
+    final int rotationSetting;
+    final int dockMode;
+    final int autoBrightness;
+
+    // -1 if not saved (or no longer valid)
+    final int backlightValue;
+    final int vibrationValue;
+
+    // Dock mode as it was last set by a profile
+    final int dockModeCurrent;
+
+    // One-off requests, cleared once the next profile is loaded
+    final boolean forceSafeMode;
+    final boolean forceUiRefresh;
+
+    private CurrentState(SharedPreferences pref) {
+        active = !pref.getBoolean("not_active", true);
+        profile = ProfileState.read(pref);
+
+        bluetoothSystem = pref.getBoolean("bluetooth_on_system", false);
+        wifiSystem = pref.getBoolean("wifi_on_system", false);
+        daydreamsSystem = pref.getBoolean("daydreams_on_system", false);
+        daydreamsWhileChargingSystem = pref.getBoolean("daydreams_while_charging", false);
+        showTouchesSystem = pref.getBoolean("show_touches_system", false);
+        navbarSystem = pref.getBoolean("navbar_system", false);
+        screenTimeoutSystem = pref.getInt("screen_timeout_system", 60000);
+        stayOnWhilePluggedInSystem = pref.getInt("stay_on_while_plugged_in_system", 0);
+        userRotation = pref.getInt("user_rotation", Surface.ROTATION_0);
+        rotationSetting = pref.getInt("rotation_setting", 1);
+        dockMode = pref.getInt("dock_mode", Intent.EXTRA_DOCK_STATE_UNDOCKED);
+        autoBrightness = pref.getInt("auto_brightness", Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL);
+        backlightValue = pref.getInt("backlight_value", -1);
+        vibrationValue = pref.getInt("vibration_value", -1);
+        dockModeCurrent = pref.getInt("dock_mode_current", Intent.EXTRA_DOCK_STATE_UNDOCKED);
+        forceSafeMode = pref.getBoolean("force_safe_mode", false);
+        forceUiRefresh = pref.getBoolean("force_ui_refresh", false);
+    }
+
+    static CurrentState read(SharedPreferences pref) {
+        return new CurrentState(pref);
+    }
+}
@@ -0,0 +1,64 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Enables Daydreams (and Daydreams while charging)
+final class DaydreamsAction extends ProfileAction<Boolean> {
+
+    @Override
+    void capture(ActionContext c) {
+        SettingsSnapshot settings = c.getSettings();
+        c.editor.putBoolean("daydreams_on_system", SettingsSnapshot.get(settings.screensaverEnabled, 0) == 1);
+        c.editor.putBoolean("daydreams_while_charging", SettingsSnapshot.get(settings.screensaverActivateOnSleep, 0) == 1);
+    }
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.daydreams;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.daydreams;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        if(target) {
+            plan.setCommand(Slot.DAYDREAMS, U.daydreamsCommand(true));
+            plan.setCommand(Slot.DAYDREAMS_CHARGING, U.daydreamsChargingCommand(true));
+        } else
+            restore(c, plan);
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("daydreams_on", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.daydreams)
+            restore(c, plan);
+    }
+
+    private void restore(ActionContext c, Plan plan) {
+        plan.setCommand(Slot.DAYDREAMS, U.daydreamsCommand(c.current.daydreamsSystem));
+        plan.setCommand(Slot.DAYDREAMS_CHARGING, U.daydreamsChargingCommand(c.current.daydreamsWhileChargingSystem));
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.CommandVerifier;
+import com.farmerbb.secondscreen.util.U;
+
+// Changes the screen density
+final class DensityAction extends ProfileAction<String> {
+
+    @Override
+    String current(ActionContext c) {
+        return c.active ? c.current.profile.density : "reset";
+    }
+
+    @Override
+    String target(ActionContext c) {
+        return c.target.density;
+    }
+
+    // Compare against the actual density of the display, rather than what was saved
+    @Override
+    boolean differs(ActionContext c, String current, String target) {
+        return U.runDensityCommand(c.context, target);
+    }
+
+    @Override
+    void apply(ActionContext c, String current, String target, Plan plan) {
+        setDensity(plan, target, getCommand(c, target));
+    }
+
+    @Override
+    void save(ActionContext c, String target) {
+        c.editor.putString("density", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(differs(c, null, "reset"))
+            setDensity(plan, "reset", getCommand(c, "reset"));
+    }
+
+    private void setDensity(Plan plan, String density, String command) {
+        plan.densityChanged = true;
+        plan.density = density;
+        plan.setCommand(Slot.DENSITY, command);
+    }
+
+    private String getCommand(ActionContext c, String density) {
+        // Run a different command if we are restarting the ActivityManager
+        return CommandVerifier.density(density, c.restartsActivityManager());
+    }
+}
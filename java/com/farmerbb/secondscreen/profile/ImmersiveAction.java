@@ -0,0 +1,48 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Hides the status bar, or both the status and navigation bars
+final class ImmersiveAction extends ProfileAction<ProfileState.Immersive> {
+
+    @Override
+    ProfileState.Immersive current(ActionContext c) {
+        return c.active ? c.current.profile.immersive : ProfileState.Immersive.DO_NOTHING;
+    }
+
+    @Override
+    ProfileState.Immersive target(ActionContext c) {
+        return c.target.immersive;
+    }
+
+    @Override
+    void apply(ActionContext c, ProfileState.Immersive current, ProfileState.Immersive target, Plan plan) {
+        plan.setCommand(Slot.IMMERSIVE, U.immersiveCommand(target.value));
+    }
+
+    @Override
+    void save(ActionContext c, ProfileState.Immersive target) {
+        c.editor.putString("immersive_new", target.value);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.immersive != ProfileState.Immersive.DO_NOTHING)
+            plan.setCommand(Slot.IMMERSIVE, U.immersiveCommand(ProfileState.Immersive.DO_NOTHING.value));
+    }
+}
@@ -0,0 +1,142 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import com.farmerbb.secondscreen.util.StateStore;
+import com.farmerbb.secondscreen.util.U;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Record of the actions actually applied while profiles are active, each with the state it was
+// in before the first change and after the latest one.  A journal is started when a profile is
+// loaded while none is active, updated on every following profile load, and cleared when the
+// profile is turned off.  This lets turning off a profile undo exactly what was changed, and lets
+// BootService replay only what is still in effect.  Kept in journal.xml, with at most one entry
+// per action, so it doesn't grow with the number of profile loads.
+// Changes are staged on the StateStore of the transition, and written out along with current.xml.
+final class Journal {
+
+    // A single applied action
+    static final class Entry {
+        final String action;
+        final String before;
+        final String after;
+
+        Entry(String action, String before, String after) {
+            this.action = action;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    private final SharedPreferences pref;
+    private final StateStore store;
+
+    // By action, in the order they were last applied
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>();
+    private boolean started;
+    private boolean dirty = false;
+
+    private Journal(SharedPreferences pref, StateStore store) {
+        this.pref = pref;
+        this.store = store;
+        this.started = pref.getBoolean("started", false);
+
+        int size = pref.getInt("size", 0);
+        for(int i = 0; i < size; i++) {
+            String[] entry = pref.getString("entry_" + Integer.toString(i), "").split("\n", -1);
+            if(entry.length == 3)
+                entries.put(entry[0], new Entry(entry[0], entry[1], entry[2]));
+        }
+    }
+
+    static Journal load(Context context, StateStore store) {
+        return new Journal(U.getPrefSaved(context, "journal"), store);
+    }
+
+    static void clear(Context context, StateStore store) {
+        store.edit(U.getPrefSaved(context, "journal")).clear();
+    }
+
+    // False if the active profile was loaded without a journal being kept (for example,
+    // by an older version of the app), in which case nothing is known about what was applied
+    boolean exists() {
+        return started;
+    }
+
+    // Starts a new journal, discarding any previous entries
+    void start() {
+        entries.clear();
+        dirty = false;
+        started = true;
+        store.edit(pref).clear().putBoolean("started", true);
+    }
+
+    void append(String action, Object before, Object after) {
+        String beforeValue = String.valueOf(before);
+        String afterValue = String.valueOf(after);
+
+        // Re-applying a state that is already in effect changes nothing
+        if(beforeValue.equals(afterValue))
+            return;
+
+        // Keeps the state from before the first change, and moves the action to the end
+        Entry previous = entries.remove(action);
+        entries.put(action, new Entry(action, previous == null ? beforeValue : previous.before, afterValue));
+        dirty = true;
+    }
+
+    // Stages the entries, if anything has changed, to be written out with the rest of the
+    // transition's state.  Entries are rewritten as a whole, as their order may have changed;
+    // there is at most one per action.
+    void commit() {
+        if(!dirty)
+            return;
+
+        SharedPreferences.Editor editor = store.edit(pref);
+        int i = 0;
+        for(Entry entry : entries.values()) {
+            editor.putString("entry_" + Integer.toString(i), entry.action + "\n" + entry.before + "\n" + entry.after);
+            i++;
+        }
+
+        editor.putInt("size", entries.size());
+        dirty = false;
+    }
+
+    // True if the action's state was changed, and has not since been changed back
+    boolean hasChanged(String action) {
+        Entry entry = entries.get(action);
+        return entry != null && !entry.before.equals(entry.after);
+    }
+
+    // Actions that have been changed and not changed back, in the order they were last applied
+    List<String> getChanged() {
+        List<String> changed = new ArrayList<>();
+
+        for(Entry entry : entries.values()) {
+            if(!entry.before.equals(entry.after))
+                changed.add(entry.action);
+        }
+
+        return changed;
+    }
+}
@@ -0,0 +1,63 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Forces the on-screen navigation bar to be shown (CyanogenMod only)
+final class NavbarAction extends ProfileAction<Boolean> {
+
+    @Override
+    boolean isSupported(ActionContext c) {
+        return c.context.getPackageManager().hasSystemFeature("com.cyanogenmod.android");
+    }
+
+    @Override
+    void capture(ActionContext c) {
+        c.editor.putBoolean("navbar_system", SettingsSnapshot.get(c.getSettings().forceShowNavbar, 0) == 1);
+    }
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.navbar;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.navbar;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        setNavbar(target || c.current.navbarSystem, plan);
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("navbar", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(isSupported(c) && c.current.profile.navbar)
+            setNavbar(c.current.navbarSystem, plan);
+    }
+
+    // Write the setting directly if we can, otherwise fall back to su
+    private void setNavbar(boolean enabled, Plan plan) {
+        plan.putSetting(Plan.Table.SYSTEM, "dev_force_show_navbar", enabled ? 1 : 0, Slot.NAVBAR, U.navbarCommand(enabled));
+    }
+}
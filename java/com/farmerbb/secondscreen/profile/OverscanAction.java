@@ -0,0 +1,79 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.os.Build;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Applies overscan to the screen.  The state is the "bottom,left,top,right" argument
+// passed to "wm overscan", or null if overscan is off.
+final class OverscanAction extends ProfileAction<String> {
+
+    @Override
+    boolean isSupported(ActionContext c) {
+        return Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN_MR1;
+    }
+
+    @Override
+    String current(ActionContext c) {
+        return c.active ? getOverscan(c.current.profile) : null;
+    }
+
+    @Override
+    String target(ActionContext c) {
+        return getOverscan(c.target);
+    }
+
+    @Override
+    void apply(ActionContext c, String current, String target, Plan plan) {
+        if(target == null)
+            setOverscan(plan, "reset", U.overscanCommand + "reset");
+        else
+            setOverscan(plan, target, U.overscanCommand + target);
+    }
+
+    @Override
+    void save(ActionContext c, String target) {
+        c.editor.putBoolean("overscan", c.target.overscan);
+        c.editor.putInt("overscan_left", c.target.overscanLeft);
+        c.editor.putInt("overscan_right", c.target.overscanRight);
+        c.editor.putInt("overscan_top", c.target.overscanTop);
+        c.editor.putInt("overscan_bottom", c.target.overscanBottom);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(isSupported(c) && c.current.profile.overscan)
+            setOverscan(plan, "reset", U.overscanCommand + "reset");
+    }
+
+    private void setOverscan(Plan plan, String overscan, String command) {
+        plan.overscanChanged = true;
+        plan.overscan = overscan;
+        plan.setCommand(Slot.OVERSCAN, command);
+    }
+
+    private String getOverscan(ProfileState profile) {
+        if(!profile.overscan)
+            return null;
+
+        return Integer.toString(profile.overscanBottom) + ","
+                + Integer.toString(profile.overscanLeft) + ","
+                + Integer.toString(profile.overscanTop) + ","
+                + Integer.toString(profile.overscanRight);
+    }
+}
@@ -0,0 +1,265 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.bluetooth.BluetoothAdapter;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.wifi.WifiManager;
+import android.os.AsyncTask;
+import android.provider.Settings;
+
+import com.farmerbb.secondscreen.helper.HelperProtocol;
+import com.farmerbb.secondscreen.util.CommandVerifier;
+import com.farmerbb.secondscreen.util.ReadinessProbe;
+import com.farmerbb.secondscreen.util.RootHelperClient;
+import com.farmerbb.secondscreen.util.RootTask;
+import com.farmerbb.secondscreen.util.U;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+// The set of changes needed to go from one state to another, as computed by the ProfileEngine.
+// A plan consists of non-root steps (radio toggles and settings writes), which are run by
+// execute(), followed by superuser commands, which are run by runCommandsAsync().
+// Work that doesn't depend on anything else runs concurrently, so the time taken to apply a plan
+// is that of its longest chain rather than the sum of everything:
+// * Radio toggles run in the background, each on their own thread
+// * Settings writes run on the calling thread, as superuser commands depend on them
+//   (the navigation bar falls back to su, and the screen is dimmed before the backlight goes off)
+// * Superuser commands are split into lanes (see Slot.Lane), each run on its own root session
+public final class Plan {
+
+    // Settings tables that steps can write to
+    enum Table { SYSTEM, SECURE, GLOBAL }
+
+    private interface Step {
+        void execute(Context context, Plan plan);
+    }
+
+    private final EnumMap<Slot, String> commands = new EnumMap<>(Slot.class);
+    private final List<Step> steps = new ArrayList<>();
+    private final List<Step> backgroundSteps = new ArrayList<>();
+    private final List<FutureTask<Void>> running = new ArrayList<>();
+    private final List<RootTask> tasks = new ArrayList<>();
+    private boolean restartActivityManager = false;
+
+    // Set by the size, density and overscan actions, as other actions depend on them
+    boolean sizeChanged = false;
+    boolean densityChanged = false;
+    boolean overscanChanged = false;
+    String size;
+    String density;
+    String overscan;
+
+    Plan() {}
+
+    void setCommand(Slot slot, String command) {
+        commands.put(slot, command);
+    }
+
+    String getCommand(Slot slot) {
+        return commands.get(slot);
+    }
+
+    boolean hasCommand(Slot slot) {
+        return commands.containsKey(slot);
+    }
+
+    // Use the ActivityManager restart ordering for the superuser commands
+    void restartActivityManager() {
+        restartActivityManager = true;
+    }
+
+    boolean restartsActivityManager() {
+        return restartActivityManager;
+    }
+
+    // True if the superuser commands may take our process down before a background write of the
+    // saved state could finish: restarting the ActivityManager always does, and a new size or
+    // density makes some devices restart the system server
+    public boolean needsDurableState() {
+        return restartActivityManager || sizeChanged || densityChanged;
+    }
+
+    void setBluetooth(final boolean enabled) {
+        backgroundSteps.add(new Step() {
+            @Override
+            public void execute(Context context, Plan plan) {
+                BluetoothAdapter bluetooth = BluetoothAdapter.getDefaultAdapter();
+                if(bluetooth != null) {
+                    if(enabled)
+                        bluetooth.enable();
+                    else
+                        bluetooth.disable();
+                }
+            }
+        });
+    }
+
+    void setWifi(final boolean enabled) {
+        backgroundSteps.add(new Step() {
+            @Override
+            public void execute(Context context, Plan plan) {
+                WifiManager wifi = (WifiManager) context.getSystemService(Context.WIFI_SERVICE);
+                wifi.setWifiEnabled(enabled);
+            }
+        });
+    }
+
+    void putSetting(Table table, String key, int value) {
+        putSetting(table, key, value, null, null);
+    }
+
+    // Writes a setting directly; if we aren't allowed to, the given superuser command is run instead
+    void putSetting(final Table table, final String key, final int value, final Slot fallbackSlot, final String fallbackCommand) {
+        steps.add(new Step() {
+            @Override
+            public void execute(Context context, Plan plan) {
+                try {
+                    ContentResolver resolver = context.getContentResolver();
+                    switch(table) {
+                        case SYSTEM:
+                            Settings.System.putInt(resolver, key, value);
+                            break;
+                        case SECURE:
+                            Settings.Secure.putInt(resolver, key, value);
+                            break;
+                        case GLOBAL:
+                            Settings.Global.putInt(resolver, key, value);
+                            break;
+                    }
+                } catch (SecurityException e) {
+                    if(fallbackSlot == null)
+                        throw e;
+
+                    plan.setCommand(fallbackSlot, fallbackCommand);
+                }
+            }
+        });
+    }
+
+    // Starts the radio toggles in the background, then runs the settings writes.
+    // Must be called before runCommandsAsync(), as steps can fall back to superuser commands.
+    public void execute(final Context context) {
+        for(final Step step : backgroundSteps) {
+            FutureTask<Void> future = new FutureTask<>(new Runnable() {
+                @Override
+                public void run() {
+                    step.execute(context, Plan.this);
+                }
+            }, null);
+
+            running.add(future);
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(future);
+        }
+
+        for(Step step : steps) {
+            step.execute(context, this);
+        }
+    }
+
+    // Starts running the superuser commands in the background, one root session per lane
+    public void runCommandsAsync(Context context) {
+        if(restartActivityManager) {
+            // Restarting the ActivityManager takes our process down with it,
+            // so everything else has to be done by then
+            awaitSteps();
+            submit(context, Slot.ACTIVITY_MANAGER_ORDER);
+        } else {
+            if(RootHelperClient.isEnabled(context))
+                combineDisplayCommands();
+
+            for(Slot.Lane lane : Slot.Lane.values()) {
+                List<Slot> slots = new ArrayList<>();
+                for(Slot slot : Slot.values()) {
+                    if(slot.lane == lane)
+                        slots.add(slot);
+                }
+
+                submit(context, slots.toArray(new Slot[slots.size()]));
+            }
+        }
+    }
+
+    // Blocks until the radio toggles and all superuser commands have finished
+    public void await() {
+        awaitSteps();
+
+        for(RootTask task : tasks) {
+            task.await();
+        }
+    }
+
+    private void submit(Context context, Slot[] slots) {
+        List<String> list = new ArrayList<>();
+        for(Slot slot : slots) {
+            String command = commands.get(slot);
+            if(command != null && !command.equals(""))
+                list.add(command);
+        }
+
+        if(!list.isEmpty())
+            tasks.add(U.runCommandsAsync(context, list.toArray(new String[list.size()]))
+                    .addCallback(ReadinessProbe.getLearner(context), RootTask.DIRECT)
+                    .addCallback(CommandVerifier.getRecorder(context), RootTask.DIRECT));
+    }
+
+    // Replaces the resolution, density and overscan commands with a single command, which the
+    // resident root helper carries out with direct window manager calls instead of starting "wm"
+    // up to three times.  The original commands are kept in it, in case it is run by a shell.
+    private void combineDisplayCommands() {
+        Slot[] slots = {Slot.DENSITY, Slot.SIZE, Slot.OVERSCAN};
+        boolean[] known = {densityChanged, sizeChanged, overscanChanged};
+
+        List<Slot> combined = new ArrayList<>();
+        String fallback = "";
+        for(int i = 0; i < slots.length; i++) {
+            String command = commands.get(slots[i]);
+            if(known[i] && command != null && !command.equals("")) {
+                fallback = fallback + (combined.isEmpty() ? "" : "; ") + command;
+                combined.add(slots[i]);
+            }
+        }
+
+        if(combined.isEmpty())
+            return;
+
+        for(Slot slot : combined) {
+            commands.remove(slot);
+        }
+
+        commands.put(combined.get(0), HelperProtocol.displayCommand(
+                combined.contains(Slot.SIZE) ? size : null,
+                combined.contains(Slot.DENSITY) ? density : null,
+                combined.contains(Slot.OVERSCAN) ? overscan : null,
+                fallback));
+    }
+
+    private void awaitSteps() {
+        for(FutureTask<Void> future : running) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException e) {}
+        }
+    }
+}
@@ -0,0 +1,57 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+// A single profile option (resolution, Wi-Fi, backlight, etc.), of which the state can be read,
+// compared, applied and reverted.  The ProfileEngine runs through all actions to build a plan;
+// an action only contributes to the plan if its current and target states differ.
+abstract class ProfileAction<T> {
+
+    // False if the device doesn't support this option, in which case only save() is called
+    boolean isSupported(ActionContext c) {
+        return true;
+    }
+
+    // Records the system state that this action will need to restore when the profile is
+    // turned off.  Only called when loading a profile while none is active.
+    void capture(ActionContext c) {}
+
+    // State of this option as it is currently applied.
+    // If no profile is active, this should be the state in which the option has no effect.
+    abstract T current(ActionContext c);
+
+    // State of this option requested by the profile being loaded
+    abstract T target(ActionContext c);
+
+    // True if going from the current to the target state requires any work
+    boolean differs(ActionContext c, T current, T target) {
+        return current == null ? target != null : !current.equals(target);
+    }
+
+    // Adds the changes needed to go from the current to the target state to the plan.  Only called
+    // while loading a profile.
+    abstract void apply(ActionContext c, T current, T target, Plan plan);
+
+    // Records the target state in current.xml
+    void save(ActionContext c, T target) {}
+
+    // Adds the changes needed to restore the system state captured before the profile was loaded
+    abstract void revert(ActionContext c, Plan plan);
+
+    // Adds the changes needed to re-apply the active profile's state after a reboot,
+    // for options that don't stick across reboots
+    void reapply(ActionContext c, Plan plan) {}
+}
@@ -0,0 +1,176 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+import com.farmerbb.secondscreen.util.StateStore;
+import com.farmerbb.secondscreen.util.U;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Works out what needs to be done to load or turn off a profile.
+// Each profile option is modelled as a ProfileAction; when loading a profile, only the actions
+// whose target state differs from the current state (as recorded in current.xml) contribute to
+// the plan, so switching between similar profiles only touches what actually changes.
+// Every action that is applied is recorded in a Journal, which is what turning off the profile
+// and replaying it after a reboot are based on.
+// The ProfileEngine does not change anything itself; the returned Plan is executed by the caller.
+public final class ProfileEngine {
+
+    private ProfileEngine() {}
+
+    // Actions are planned in this order.  Some actions depend on earlier ones:
+    // the UI refresh depends on size and density, and the backlight depends on the UI refresh.
+    // Each action is keyed by the name it is recorded under in the journal.
+    private static Map<String, ProfileAction<?>> getActions() {
+        Map<String, ProfileAction<?>> actions = new LinkedHashMap<>();
+        actions.put("bluetooth", new BluetoothAction());
+        actions.put("wifi", new WifiAction());
+        actions.put("size", new SizeAction());
+        actions.put("density", new DensityAction());
+        actions.put("overscan", new OverscanAction());
+        actions.put("rotation", new RotationAction());
+        actions.put("screen_timeout", new ScreenTimeoutAction());
+        actions.put("chrome", new ChromeAction());
+        actions.put("daydreams", new DaydreamsAction());
+        actions.put("vibration", new VibrationAction());
+        actions.put("show_touches", new ShowTouchesAction());
+        actions.put("navbar", new NavbarAction());
+        actions.put("immersive", new ImmersiveAction());
+        actions.put("ui_refresh", new UiRefreshAction());
+        actions.put("backlight", new BacklightAction());
+        return actions;
+    }
+
+    // Plans the loading of a profile.  The new state for current.xml and the applied actions
+    // for the journal are staged on the store, which should be flushed before the plan's
+    // superuser commands are run.
+    public static Plan planLoad(Context context, SharedPreferences prefCurrent, SharedPreferences prefSaved, StateStore store) {
+        SharedPreferences.Editor editor = store.edit(prefCurrent);
+        ActionContext c = new ActionContext(context, U.getPrefMain(context), CurrentState.read(prefCurrent), ProfileState.read(prefSaved), editor);
+        c.journal = Journal.load(context, store);
+        Plan plan = new Plan();
+
+        if(!c.active)
+            c.journal.start();
+
+        for(Map.Entry<String, ProfileAction<?>> action : getActions().entrySet()) {
+            load(action.getKey(), action.getValue(), c, plan);
+        }
+
+        c.journal.commit();
+
+        // Remove any special preferences that are not needed after profile load
+        if(c.current.forceSafeMode) {
+            editor.remove("force_safe_mode");
+
+            if(!c.restartsActivityManager()) {
+                plan.setCommand(Slot.SAFE_MODE_SIZE, U.safeModeSizeCommand + "null");
+                plan.setCommand(Slot.SAFE_MODE_DENSITY, U.safeModeDensityCommand + "null");
+            }
+        }
+
+        if(c.current.forceUiRefresh)
+            editor.remove("force_ui_refresh");
+
+        // Set "not_active" status to false
+        if(!c.active)
+            editor.putBoolean("not_active", false);
+
+        return plan;
+    }
+
+    // Plans turning off the currently active profile, undoing the actions recorded in the journal
+    // in reverse order, and restoring the state recorded in current.xml.  The journal is cleared.
+    public static Plan planTurnOff(Context context, SharedPreferences prefCurrent, StateStore store) {
+        ActionContext c = new ActionContext(context, U.getPrefMain(context), CurrentState.read(prefCurrent), null, null);
+        Journal journal = Journal.load(context, store);
+        Map<String, ProfileAction<?>> actions = getActions();
+        Plan plan = new Plan();
+
+        if(journal.exists()) {
+            c.journal = journal;
+
+            List<String> changed = journal.getChanged();
+            for(int i = changed.size() - 1; i >= 0; i--) {
+                ProfileAction<?> action = actions.get(changed.get(i));
+
+                // Left by a version with actions that no longer exist, or a damaged journal.xml;
+                // there is nothing to undo it with, and the journal still has to be cleared
+                if(action == null) {
+                    Log.w("SecondScreen", "Unknown action in journal: " + changed.get(i));
+                    continue;
+                }
+
+                action.revert(c, plan);
+            }
+        } else {
+            // Nothing is known about what was applied; revert everything
+            for(ProfileAction<?> action : actions.values()) {
+                action.revert(c, plan);
+            }
+        }
+
+        Journal.clear(context, store);
+        return plan;
+    }
+
+    // Plans re-applying the active profile after a reboot, for options that don't stick across reboots
+    public static Plan planBoot(Context context, SharedPreferences prefCurrent, StateStore store) {
+        SharedPreferences.Editor editor = store.edit(prefCurrent);
+        ActionContext c = new ActionContext(context, U.getPrefMain(context), CurrentState.read(prefCurrent), null, editor);
+        Journal journal = Journal.load(context, store);
+        Plan plan = new Plan();
+
+        for(Map.Entry<String, ProfileAction<?>> action : getActions().entrySet()) {
+            // Only replay what the journal says is in effect (if there is a journal)
+            if(!journal.exists() || journal.hasChanged(action.getKey()))
+                action.getValue().reapply(c, plan);
+        }
+
+        // The ActivityManager was restarted in safe mode; clear the forced size and density
+        if(c.prefMain.getBoolean("safe_mode", false)
+                && c.current.profile.uiRefresh == ProfileState.UiRefresh.ACTIVITY_MANAGER) {
+            plan.setCommand(Slot.SAFE_MODE_SIZE, U.safeModeSizeCommand + "null");
+            plan.setCommand(Slot.SAFE_MODE_DENSITY, U.safeModeDensityCommand + "null");
+            editor.putString("ui_refresh", ProfileState.UiRefresh.ACTIVITY_MANAGER_SAFE_MODE.value);
+        }
+
+        return plan;
+    }
+
+    private static <T> void load(String name, ProfileAction<T> action, ActionContext c, Plan plan) {
+        T target = action.target(c);
+
+        if(action.isSupported(c)) {
+            if(!c.active)
+                action.capture(c);
+
+            T current = action.current(c);
+            if(action.differs(c, current, target)) {
+                action.apply(c, current, target, plan);
+                c.journal.append(name, current, target);
+            }
+        }
+
+        action.save(c, target);
+    }
+}
@@ -0,0 +1,192 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.SharedPreferences;
+
+// The options of a profile, parsed once from its SharedPreferences file.  Options that can only
+// take a few values are enums; legacy values (such as the boolean "rotation_lock" and "immersive"
+// keys used before the "_new" variants) are resolved here, so that everything else sees a
+// consistent state.  Used both for saved profiles and for the options recorded in current.xml.
+public final class ProfileState {
+
+    public enum Rotation {
+        DO_NOTHING("do-nothing"),
+        LANDSCAPE("landscape"),
+        AUTO_ROTATE("auto-rotate");
+
+        final String value;
+
+        Rotation(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    public enum Immersive {
+        DO_NOTHING("do-nothing"),
+        STATUS_ONLY("status-only"),
+        IMMERSIVE_MODE("immersive-mode");
+
+        final String value;
+
+        Immersive(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    public enum UiRefresh {
+        DO_NOTHING("do-nothing"),
+        SYSTEM_UI("system-ui"),
+        ACTIVITY_MANAGER("activity-manager"),
+
+        // Only found in current.xml: the ActivityManager was restarted in safe mode
+        ACTIVITY_MANAGER_SAFE_MODE("activity-manager-safe-mode");
+
+        final String value;
+
+        UiRefresh(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    public enum ScreenTimeout {
+        DO_NOTHING("do-nothing"),
+        ALWAYS_ON("always-on"),
+        ALWAYS_ON_CHARGING("always-on-charging");
+
+        final String value;
+
+        ScreenTimeout(String value) {
+            this.value = value;
+        }
+
+        @Override
+        public String toString() {
+            return value;
+        }
+    }
+
+    public final boolean bluetooth;
+    public final boolean wifi;
+    public final boolean daydreams;
+    public final boolean showTouches;
+    public final boolean backlightOff;
+    public final boolean vibrationOff;
+    public final boolean chrome;
+    public final boolean navbar;
+
+    // "reset" for the device's native resolution and density
+    public final String size;
+    public final String density;
+
+    public final boolean overscan;
+    public final int overscanLeft;
+    public final int overscanRight;
+    public final int overscanTop;
+    public final int overscanBottom;
+
+    public final Rotation rotation;
+    public final Immersive immersive;
+    public final UiRefresh uiRefresh;
+    public final ScreenTimeout screenTimeout;
+
+    private ProfileState(SharedPreferences pref) {
+        bluetooth = pref.getBoolean("bluetooth_on", false);
+        wifi = pref.getBoolean("wifi_on", false);
+        daydreams = pref.getBoolean("daydreams_on", false);
+        showTouches = pref.getBoolean("show_touches", false);
+        backlightOff = pref.getBoolean("backlight_off", false);
+        vibrationOff = pref.getBoolean("vibration_off", false);
+        chrome = pref.getBoolean("chrome", false);
+        navbar = pref.getBoolean("navbar", false);
+
+        size = pref.getString("size", "reset");
+        density = pref.getString("density", "reset");
+
+        overscan = pref.getBoolean("overscan", false);
+        overscanLeft = pref.getInt("overscan_left", 20);
+        overscanRight = pref.getInt("overscan_right", 20);
+        overscanTop = pref.getInt("overscan_top", 20);
+        overscanBottom = pref.getInt("overscan_bottom", 20);
+
+        String rotationValue = pref.getString("rotation_lock_new", "fallback");
+        if("fallback".equals(rotationValue))
+            rotation = pref.getBoolean("rotation_lock", false) ? Rotation.LANDSCAPE : Rotation.DO_NOTHING;
+        else
+            rotation = parse(Rotation.values(), rotationValue, Rotation.DO_NOTHING);
+
+        String immersiveValue = pref.getString("immersive_new", "fallback");
+        if("fallback".equals(immersiveValue))
+            immersive = pref.getBoolean("immersive", false) ? Immersive.IMMERSIVE_MODE : Immersive.DO_NOTHING;
+        else
+            immersive = parse(Immersive.values(), immersiveValue, Immersive.DO_NOTHING);
+
+        uiRefresh = parse(UiRefresh.values(), pref.getString("ui_refresh", "do-nothing"), UiRefresh.DO_NOTHING);
+        screenTimeout = parse(ScreenTimeout.values(), pref.getString("screen_timeout", "do-nothing"), ScreenTimeout.DO_NOTHING);
+    }
+
+    public static ProfileState read(SharedPreferences pref) {
+        return new ProfileState(pref);
+    }
+
+    // Writes the options to another profile, with legacy values resolved
+    public void write(SharedPreferences.Editor editor) {
+        editor.putBoolean("bluetooth_on", bluetooth);
+        editor.putBoolean("wifi_on", wifi);
+        editor.putBoolean("daydreams_on", daydreams);
+        editor.putBoolean("show_touches", showTouches);
+        editor.putBoolean("backlight_off", backlightOff);
+        editor.putBoolean("vibration_off", vibrationOff);
+        editor.putBoolean("chrome", chrome);
+        editor.putBoolean("navbar", navbar);
+        editor.putString("size", size);
+        editor.putString("density", density);
+        editor.putBoolean("overscan", overscan);
+        editor.putInt("overscan_left", overscanLeft);
+        editor.putInt("overscan_right", overscanRight);
+        editor.putInt("overscan_top", overscanTop);
+        editor.putInt("overscan_bottom", overscanBottom);
+        editor.putString("rotation_lock_new", rotation.value);
+        editor.putString("immersive_new", immersive.value);
+        editor.putString("ui_refresh", uiRefresh.value);
+        editor.putString("screen_timeout", screenTimeout.value);
+    }
+
+    // Looks up an enum constant by its preference value
+    private static <E extends Enum<E>> E parse(E[] constants, String value, E defaultValue) {
+        for(E constant : constants) {
+            if(constant.toString().equals(value))
+                return constant;
+        }
+
+        return defaultValue;
+    }
+}
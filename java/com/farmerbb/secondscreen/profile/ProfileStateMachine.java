@@ -0,0 +1,210 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.SystemClock;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Serializes loading and turning off profiles.  ProfileLoadService and TurnOffService run on
+// separate threads, and requests can come in from the UI, Tasker, shortcuts and display hotplug
+// events all at once, so every transition goes through here:
+//
+//   IDLE --(load)--> APPLYING --> ACTIVE --(turn off)--> REVERTING --> IDLE
+//   ACTIVE --(load)--> APPLYING --> ACTIVE
+//
+// Every request is given a version number when it is made.  The latest version is kept in
+// profile_requests.xml, so that a request made just before the process died still counts as the
+// newest one when its service is started in a new process.  Only one transition runs at a time,
+// and when a service gets round to its request, it is dropped if a newer one has been made since
+// (the newest request always wins, so a burst of requests results in a single command batch), or
+// if it would not change anything (turning off a profile when none is active).
+// Requests are coalesced: a transition doesn't start until no new request has come in for
+// COALESCE_WINDOW, and can still be dropped after planning, up until it starts applying anything.
+// Quick Action toggles are applied to quick_actions.xml as soon as they are requested, so that
+// a burst of them all make it into the one load that is carried out.
+public final class ProfileStateMachine {
+
+    public enum State { IDLE, APPLYING, ACTIVE, REVERTING }
+
+    // How long (in milliseconds) to wait for further requests before starting a transition
+    private static final long COALESCE_WINDOW = 400;
+
+    private static final Object lock = new Object();
+    private static State state;
+    private static int requested = -1;
+    private static long lastRequest = 0;
+
+    private ProfileStateMachine() {}
+
+    // Records a request to load a profile, and returns its version, to be passed to ProfileLoadService
+    public static int requestLoad(Context context, String filename) {
+        synchronized(lock) {
+            SharedPreferences prefCurrent = U.getPrefCurrent(context);
+            SharedPreferences.Editor editor = prefCurrent.edit();
+
+            // Handle toggling of certain values
+            String toggle = prefCurrent.getString("toggle", "null");
+            if(!"null".equals(toggle) && filename.equals("quick_actions")) {
+                SharedPreferences prefSaved = U.getPrefQuickActions(context);
+                SharedPreferences.Editor editorSaved = prefSaved.edit();
+
+                if("immersive_new".equals(toggle)) {
+                    toggle = "immersive";
+                    editorSaved.remove("immersive_new");
+                }
+
+                editorSaved.putBoolean(toggle, !prefSaved.getBoolean(toggle, false));
+                editorSaved.apply();
+
+                editor.remove("toggle");
+            }
+
+            // Set filename in current.xml, so the UI shows the profile straight away
+            editor.putString("filename", filename);
+            editor.apply();
+
+            return newRequest(context);
+        }
+    }
+
+    // Records a request to turn off the active profile, and returns its version,
+    // to be passed to TurnOffService
+    public static int requestTurnOff(Context context) {
+        synchronized(lock) {
+            SharedPreferences prefCurrent = U.getPrefCurrent(context);
+            SharedPreferences.Editor editor = prefCurrent.edit();
+
+            // Don't lose track of the profile to fall back to if a turn off is requested twice
+            String filename = prefCurrent.getString("filename", "0");
+            if(!"0".equals(filename))
+                editor.putString("filename_backup", filename);
+
+            editor.putString("filename", "0");
+            editor.apply();
+
+            return newRequest(context);
+        }
+    }
+
+    // Waits for any running transition to finish, then starts loading a profile.
+    // Returns false if the request has been superseded, in which case nothing should be done.
+    public static boolean beginLoad(Context context, int version) {
+        synchronized(lock) {
+            if(!awaitIdle(context) || version != requested)
+                return false;
+
+            state = State.APPLYING;
+            return true;
+        }
+    }
+
+    // Waits for any running transition to finish, then starts turning off the active profile.
+    // Returns false if the request has been superseded, or there is no profile to turn off.
+    public static boolean beginTurnOff(Context context, int version) {
+        synchronized(lock) {
+            if(!awaitIdle(context) || version != requested || state == State.IDLE)
+                return false;
+
+            state = State.REVERTING;
+            return true;
+        }
+    }
+
+    // True if a newer request has been made.  Checked once a transition has been planned,
+    // so that it can be dropped before anything is applied.
+    public static boolean isSuperseded(int version) {
+        synchronized(lock) {
+            return version != requested;
+        }
+    }
+
+    // Finishes the running transition.  If it failed, the state is read back from current.xml.
+    public static void end(Context context, boolean success) {
+        synchronized(lock) {
+            if(success)
+                state = state == State.REVERTING ? State.IDLE : State.ACTIVE;
+            else
+                state = readState(context);
+
+            lock.notifyAll();
+        }
+    }
+
+    public static State getState(Context context) {
+        synchronized(lock) {
+            if(state == null)
+                state = readState(context);
+
+            return state;
+        }
+    }
+
+    // must always be called while holding the lock
+    private static int newRequest(Context context) {
+        readRequested(context);
+        requested++;
+
+        SharedPreferences.Editor editor = U.getPrefSaved(context, "profile_requests").edit();
+        editor.putInt("requested", requested);
+        editor.apply();
+
+        lastRequest = SystemClock.elapsedRealtime();
+        lock.notifyAll();
+        return requested;
+    }
+
+    // Reads the latest version back after the process has been restarted.
+    // Must always be called while holding the lock.
+    private static void readRequested(Context context) {
+        if(requested == -1)
+            requested = U.getPrefSaved(context, "profile_requests").getInt("requested", 0);
+    }
+
+    // Waits for any running transition to finish, and for requests to stop coming in.
+    // Returns false if interrupted while waiting.  Must always be called while holding the lock.
+    private static boolean awaitIdle(Context context) {
+        if(state == null)
+            state = readState(context);
+
+        readRequested(context);
+
+        try {
+            while(true) {
+                long quiet = SystemClock.elapsedRealtime() - lastRequest;
+
+                if(state == State.APPLYING || state == State.REVERTING)
+                    lock.wait();
+                else if(quiet < COALESCE_WINDOW)
+                    lock.wait(COALESCE_WINDOW - quiet);
+                else
+                    return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // The app may have been restarted (along with the ActivityManager) since the last transition,
+    // so the state is worked out from current.xml when it isn't known
+    private static State readState(Context context) {
+        return U.getPrefCurrent(context).getBoolean("not_active", true) ? State.IDLE : State.ACTIVE;
+    }
+}
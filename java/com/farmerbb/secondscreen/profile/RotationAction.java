@@ -0,0 +1,144 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.app.UiModeManager;
+import android.content.Context;
+import android.content.Intent;
+import android.content.res.Configuration;
+import android.provider.Settings;
+import android.view.Surface;
+
+import com.farmerbb.secondscreen.util.SettingsMirror;
+import com.farmerbb.secondscreen.util.U;
+
+// Locks the screen rotation, either to landscape or to auto-rotate (by faking a desk dock)
+final class RotationAction extends ProfileAction<ProfileState.Rotation> {
+
+    @Override
+    void capture(ActionContext c) {
+        SettingsSnapshot settings = c.getSettings();
+        if(settings.userRotation != null) {
+            c.editor.putInt("user_rotation", settings.userRotation);
+
+            if(settings.accelerometerRotation != null)
+                c.editor.putInt("rotation_setting", settings.accelerometerRotation);
+        }
+
+        int dockMode = getSystemDockMode(c);
+        c.editor.putInt("dock_mode", dockMode);
+        c.editor.putInt("dock_mode_current", dockMode);
+    }
+
+    @Override
+    ProfileState.Rotation current(ActionContext c) {
+        return c.active ? c.current.profile.rotation : ProfileState.Rotation.DO_NOTHING;
+    }
+
+    @Override
+    ProfileState.Rotation target(ActionContext c) {
+        return c.target.rotation;
+    }
+
+    @Override
+    void apply(ActionContext c, ProfileState.Rotation current, ProfileState.Rotation target, Plan plan) {
+        // Dock mode before the first profile was loaded, and as it is right now
+        int systemDockMode = c.active
+                ? c.current.dockMode
+                : getSystemDockMode(c);
+        int currentDockMode = c.active
+                ? c.current.dockModeCurrent
+                : systemDockMode;
+
+        int dockMode;
+        switch(target) {
+            case AUTO_ROTATE:
+                dockMode = Intent.EXTRA_DOCK_STATE_DESK;
+                plan.putSetting(Plan.Table.SYSTEM, Settings.System.ACCELEROMETER_ROTATION, 1);
+                break;
+            case LANDSCAPE:
+                dockMode = Intent.EXTRA_DOCK_STATE_UNDOCKED;
+
+                if(c.prefMain.getBoolean("landscape", false))
+                    plan.putSetting(Plan.Table.SYSTEM, Settings.System.USER_ROTATION, Surface.ROTATION_0);
+                else
+                    plan.putSetting(Plan.Table.SYSTEM, Settings.System.USER_ROTATION, Surface.ROTATION_90);
+
+                plan.putSetting(Plan.Table.SYSTEM, Settings.System.ACCELEROMETER_ROTATION, 0);
+                break;
+            default:
+                dockMode = systemDockMode;
+                restoreRotation(c, plan);
+                break;
+        }
+
+        if(dockMode != currentDockMode) {
+            c.editor.putInt("dock_mode_current", dockMode);
+            setDockMode(c, dockMode, plan);
+        }
+    }
+
+    @Override
+    void save(ActionContext c, ProfileState.Rotation target) {
+        c.editor.putString("rotation_lock_new", target.value);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        restoreRotation(c, plan);
+
+        int dockMode = c.current.dockMode;
+        if(dockMode != c.current.dockModeCurrent)
+            setDockMode(c, dockMode, plan);
+    }
+
+    @Override
+    void reapply(ActionContext c, Plan plan) {
+        if(c.current.profile.rotation == ProfileState.Rotation.AUTO_ROTATE)
+            setDockMode(c, Intent.EXTRA_DOCK_STATE_DESK, plan);
+    }
+
+    private void restoreRotation(ActionContext c, Plan plan) {
+        plan.putSetting(Plan.Table.SYSTEM, Settings.System.USER_ROTATION, c.current.userRotation);
+        plan.putSetting(Plan.Table.SYSTEM, Settings.System.ACCELEROMETER_ROTATION, c.current.rotationSetting);
+    }
+
+    private void setDockMode(ActionContext c, int dockMode, Plan plan) {
+        plan.setCommand(Slot.ROTATION, U.rotationCommand + Integer.toString(dockMode));
+
+        // Workaround for if Daydreams is enabled and we are enabling dock mode
+        if(dockMode == Intent.EXTRA_DOCK_STATE_DESK
+                && SettingsMirror.getInt(c.context, SettingsMirror.Key.SCREENSAVER_ENABLED, 0) == 1
+                && SettingsMirror.getInt(c.context, SettingsMirror.Key.SCREENSAVER_ACTIVATE_ON_DOCK, 0) == 1)
+        {
+            plan.setCommand(Slot.ROTATION_PRE, U.rotationPrePostCommands + "0");
+            plan.setCommand(Slot.ROTATION_POST, U.rotationPrePostCommands + "1");
+        }
+    }
+
+    // Determine current dock state, based on the current UI mode
+    private int getSystemDockMode(ActionContext c) {
+        UiModeManager mUiModeManager = (UiModeManager) c.context.getSystemService(Context.UI_MODE_SERVICE);
+        switch(mUiModeManager.getCurrentModeType()) {
+            case Configuration.UI_MODE_TYPE_DESK:
+                return Intent.EXTRA_DOCK_STATE_DESK;
+            case Configuration.UI_MODE_TYPE_CAR:
+                return Intent.EXTRA_DOCK_STATE_CAR;
+            default:
+                return Intent.EXTRA_DOCK_STATE_UNDOCKED;
+        }
+    }
+}
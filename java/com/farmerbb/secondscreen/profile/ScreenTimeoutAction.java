@@ -0,0 +1,77 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.provider.Settings;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Keeps the screen on, either always or only while charging
+final class ScreenTimeoutAction extends ProfileAction<ProfileState.ScreenTimeout> {
+
+    @Override
+    void capture(ActionContext c) {
+        SettingsSnapshot settings = c.getSettings();
+        c.editor.putInt("screen_timeout_system", SettingsSnapshot.get(settings.screenOffTimeout, 60000));
+        c.editor.putInt("stay_on_while_plugged_in_system", SettingsSnapshot.get(settings.stayOnWhilePluggedIn, 0));
+    }
+
+    @Override
+    ProfileState.ScreenTimeout current(ActionContext c) {
+        return c.active ? c.current.profile.screenTimeout : ProfileState.ScreenTimeout.DO_NOTHING;
+    }
+
+    @Override
+    ProfileState.ScreenTimeout target(ActionContext c) {
+        return c.target.screenTimeout;
+    }
+
+    @Override
+    void apply(ActionContext c, ProfileState.ScreenTimeout current, ProfileState.ScreenTimeout target, Plan plan) {
+        // Undo whatever the current profile changed, then apply the new setting
+        revert(c, current, plan);
+
+        switch(target) {
+            case ALWAYS_ON:
+                plan.putSetting(Plan.Table.SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, 2147482000);
+                break;
+            case ALWAYS_ON_CHARGING:
+                plan.setCommand(Slot.STAY_ON, U.stayOnCommand + "1");
+                break;
+        }
+    }
+
+    @Override
+    void save(ActionContext c, ProfileState.ScreenTimeout target) {
+        c.editor.putString("screen_timeout", target.value);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        revert(c, c.current.profile.screenTimeout, plan);
+    }
+
+    private void revert(ActionContext c, ProfileState.ScreenTimeout current, Plan plan) {
+        switch(current) {
+            case ALWAYS_ON:
+                plan.putSetting(Plan.Table.SYSTEM, Settings.System.SCREEN_OFF_TIMEOUT, c.current.screenTimeoutSystem);
+                break;
+            case ALWAYS_ON_CHARGING:
+                plan.setCommand(Slot.STAY_ON, U.stayOnCommand + Integer.toString(c.current.stayOnWhilePluggedInSystem));
+                break;
+        }
+    }
+}
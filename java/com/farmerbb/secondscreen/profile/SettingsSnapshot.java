@@ -0,0 +1,178 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.provider.Settings;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// The system settings that profile actions read, fetched with a single query per settings table
+// rather than one call (and one IPC to the settings provider) per value.
+// A snapshot is immutable; settings that aren't set on this device are null.
+final class SettingsSnapshot {
+
+    private static final String SHOW_TOUCHES = "show_touches";
+    private static final String FORCE_SHOW_NAVBAR = "dev_force_show_navbar";
+    private static final String SCREENSAVER_ENABLED = "screensaver_enabled";
+    private static final String SCREENSAVER_ACTIVATE_ON_SLEEP = "screensaver_activate_on_sleep";
+
+    private static final String[] SYSTEM_KEYS = {
+            Settings.System.USER_ROTATION,
+            Settings.System.ACCELEROMETER_ROTATION,
+            Settings.System.SCREEN_OFF_TIMEOUT,
+            Settings.System.SCREEN_BRIGHTNESS,
+            Settings.System.SCREEN_BRIGHTNESS_MODE,
+            SHOW_TOUCHES,
+            FORCE_SHOW_NAVBAR
+    };
+
+    private static final String[] SECURE_KEYS = {
+            SCREENSAVER_ENABLED,
+            SCREENSAVER_ACTIVATE_ON_SLEEP
+    };
+
+    private static final String[] GLOBAL_KEYS = {
+            Settings.Global.STAY_ON_WHILE_PLUGGED_IN
+    };
+
+    private static final String[] PROJECTION = {
+            Settings.NameValueTable.NAME,
+            Settings.NameValueTable.VALUE
+    };
+
+    final Integer userRotation;
+    final Integer accelerometerRotation;
+    final Integer screenOffTimeout;
+    final Integer screenBrightness;
+    final Integer screenBrightnessMode;
+    final Integer showTouches;
+    final Integer forceShowNavbar;
+    final Integer screensaverEnabled;
+    final Integer screensaverActivateOnSleep;
+    final Integer stayOnWhilePluggedIn;
+
+    private SettingsSnapshot(Map<String, String> system, Map<String, String> secure, Map<String, String> global) {
+        userRotation = parse(system, Settings.System.USER_ROTATION);
+        accelerometerRotation = parse(system, Settings.System.ACCELEROMETER_ROTATION);
+        screenOffTimeout = parse(system, Settings.System.SCREEN_OFF_TIMEOUT);
+        screenBrightness = parse(system, Settings.System.SCREEN_BRIGHTNESS);
+        screenBrightnessMode = parse(system, Settings.System.SCREEN_BRIGHTNESS_MODE);
+        showTouches = parse(system, SHOW_TOUCHES);
+        forceShowNavbar = parse(system, FORCE_SHOW_NAVBAR);
+        screensaverEnabled = parse(secure, SCREENSAVER_ENABLED);
+        screensaverActivateOnSleep = parse(secure, SCREENSAVER_ACTIVATE_ON_SLEEP);
+        stayOnWhilePluggedIn = parse(global, Settings.Global.STAY_ON_WHILE_PLUGGED_IN);
+    }
+
+    static SettingsSnapshot read(ContentResolver resolver) {
+        return new SettingsSnapshot(
+                query(resolver, Plan.Table.SYSTEM, SYSTEM_KEYS),
+                query(resolver, Plan.Table.SECURE, SECURE_KEYS),
+                query(resolver, Plan.Table.GLOBAL, GLOBAL_KEYS));
+    }
+
+    // Returns the value, or the default if the setting isn't set
+    static int get(Integer value, int defaultValue) {
+        return value == null ? defaultValue : value;
+    }
+
+    // Reads the given keys from a settings table
+    private static Map<String, String> query(ContentResolver resolver, Plan.Table table, String[] keys) {
+        Uri uri;
+        switch(table) {
+            case SYSTEM:
+                uri = Settings.System.CONTENT_URI;
+                break;
+            case SECURE:
+                uri = Settings.Secure.CONTENT_URI;
+                break;
+            default:
+                uri = Settings.Global.CONTENT_URI;
+                break;
+        }
+
+        String selection = Settings.NameValueTable.NAME + " IN (?";
+        for(int i = 1; i < keys.length; i++) {
+            selection = selection + ",?";
+        }
+
+        selection = selection + ")";
+
+        Cursor cursor;
+        try {
+            try {
+                cursor = resolver.query(uri, PROJECTION, selection, keys, null);
+            } catch (IllegalArgumentException e) {
+                // Android 8.0 and later only support querying a single setting, or the whole table
+                cursor = resolver.query(uri, PROJECTION, null, null, null);
+            }
+        } catch (RuntimeException e) {
+            cursor = null;
+        }
+
+        Map<String, String> values = new HashMap<>();
+
+        if(cursor == null) {
+            // The settings provider can't be queried directly; read the values one by one
+            for(String key : keys) {
+                values.put(key, getString(resolver, table, key));
+            }
+
+            return values;
+        }
+
+        try {
+            while(cursor.moveToNext()) {
+                String name = cursor.getString(0);
+                for(String key : keys) {
+                    if(key.equals(name))
+                        values.put(key, cursor.getString(1));
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        return values;
+    }
+
+    private static String getString(ContentResolver resolver, Plan.Table table, String key) {
+        switch(table) {
+            case SYSTEM:
+                return Settings.System.getString(resolver, key);
+            case SECURE:
+                return Settings.Secure.getString(resolver, key);
+            default:
+                return Settings.Global.getString(resolver, key);
+        }
+    }
+
+    private static Integer parse(Map<String, String> values, String key) {
+        String value = values.get(key);
+        if(value == null)
+            return null;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.U;
+
+// Shows visual feedback for touches
+final class ShowTouchesAction extends ProfileAction<Boolean> {
+
+    @Override
+    void capture(ActionContext c) {
+        c.editor.putBoolean("show_touches_system", SettingsSnapshot.get(c.getSettings().showTouches, 0) == 1);
+    }
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.showTouches;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.showTouches;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        if(target)
+            plan.setCommand(Slot.SHOW_TOUCHES, U.showTouchesCommand(true));
+        else
+            plan.setCommand(Slot.SHOW_TOUCHES, U.showTouchesCommand(c.current.showTouchesSystem));
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("show_touches", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.showTouches)
+            plan.setCommand(Slot.SHOW_TOUCHES, U.showTouchesCommand(c.current.showTouchesSystem));
+    }
+}
@@ -0,0 +1,66 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.CommandVerifier;
+import com.farmerbb.secondscreen.util.U;
+
+// Changes the screen resolution
+final class SizeAction extends ProfileAction<String> {
+
+    @Override
+    String current(ActionContext c) {
+        return c.active ? c.current.profile.size : "reset";
+    }
+
+    @Override
+    String target(ActionContext c) {
+        return c.target.size;
+    }
+
+    // Compare against the actual resolution of the display, rather than what was saved
+    @Override
+    boolean differs(ActionContext c, String current, String target) {
+        return U.runSizeCommand(c.context, target);
+    }
+
+    @Override
+    void apply(ActionContext c, String current, String target, Plan plan) {
+        setSize(plan, target, getCommand(c, target));
+    }
+
+    @Override
+    void save(ActionContext c, String target) {
+        c.editor.putString("size", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(differs(c, null, "reset"))
+            setSize(plan, "reset", getCommand(c, "reset"));
+    }
+
+    private void setSize(Plan plan, String size, String command) {
+        plan.sizeChanged = true;
+        plan.size = size;
+        plan.setCommand(Slot.SIZE, command);
+    }
+
+    private String getCommand(ActionContext c, String size) {
+        // Run a different command if we are restarting the ActivityManager
+        return CommandVerifier.size(size, c.restartsActivityManager());
+    }
+}
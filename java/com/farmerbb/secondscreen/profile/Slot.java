@@ -0,0 +1,76 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+// Positions of superuser commands within a plan.  Commands are run in the order of this enum,
+// except if "Restart ActivityManager" is selected (see ACTIVITY_MANAGER_ORDER).
+public enum Slot {
+    DENSITY(Lane.DISPLAY),
+    SIZE(Lane.DISPLAY),
+    OVERSCAN(Lane.DISPLAY),
+    ROTATION_PRE(Lane.DISPLAY),
+    ROTATION(Lane.DISPLAY),
+    ROTATION_POST(Lane.DISPLAY),
+    CHROME(Lane.INDEPENDENT),
+    CHROME_2(Lane.INDEPENDENT),
+    IMMERSIVE(Lane.DISPLAY),
+    NAVBAR(Lane.DISPLAY),
+    DAYDREAMS(Lane.DISPLAY),
+    DAYDREAMS_CHARGING(Lane.DISPLAY),
+    SAFE_MODE_DENSITY(Lane.DISPLAY),
+    SAFE_MODE_SIZE(Lane.DISPLAY),
+    STAY_ON(Lane.INDEPENDENT),
+    SHOW_TOUCHES(Lane.INDEPENDENT),
+    UI_REFRESH(Lane.DISPLAY),
+    UI_REFRESH_2(Lane.DISPLAY),
+    VIBRATION(Lane.INDEPENDENT),
+    BACKLIGHT(Lane.DISPLAY);
+
+    // Commands are split into lanes, which are run at the same time on separate root sessions.
+    // Commands within a lane are run in order.
+    enum Lane {
+        // Commands that change what is drawn on the screen.  These have to finish before the
+        // UI is refreshed, and the backlight is turned off last, once the UI has come back.
+        // The daydream settings are run here too, after the dock broadcast, as RotationAction's
+        // screensaver workaround is planned from the settings as they were before the change.
+        DISPLAY,
+
+        // Commands that don't depend on (or affect) any other command
+        INDEPENDENT
+    }
+
+    final Lane lane;
+
+    Slot(Lane lane) {
+        this.lane = lane;
+    }
+
+    // When the ActivityManager is restarted, the commands are run in this order instead, in a single lane.
+    // The remaining commands are dropped, as they will be handled by the BootService.
+    static final Slot[] ACTIVITY_MANAGER_ORDER = {
+            DENSITY,
+            SIZE,
+            OVERSCAN,
+            CHROME,
+            CHROME_2,
+            IMMERSIVE,
+            NAVBAR,
+            DAYDREAMS,
+            DAYDREAMS_CHARGING,
+            STAY_ON,
+            SHOW_TOUCHES,
+            UI_REFRESH};
+}
@@ -0,0 +1,140 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.ReadinessProbe;
+import com.farmerbb.secondscreen.util.U;
+
+// Refreshes the UI after the resolution or density has changed, by restarting either
+// the SystemUI or the ActivityManager.  Must come after the size and density actions.
+final class UiRefreshAction extends ProfileAction<ProfileState.UiRefresh> {
+
+    @Override
+    ProfileState.UiRefresh current(ActionContext c) {
+        return c.active ? c.current.profile.uiRefresh : ProfileState.UiRefresh.DO_NOTHING;
+    }
+
+    @Override
+    ProfileState.UiRefresh target(ActionContext c) {
+        return c.target.uiRefresh;
+    }
+
+    // Whether the UI needs refreshing depends on the size and density actions rather than on
+    // the refresh method itself, so that is decided in apply()
+    @Override
+    boolean differs(ActionContext c, ProfileState.UiRefresh current, ProfileState.UiRefresh target) {
+        return true;
+    }
+
+    @Override
+    void apply(ActionContext c, ProfileState.UiRefresh current, ProfileState.UiRefresh target, Plan plan) {
+        if(!isNeeded(c, plan))
+            return;
+
+        // If a UI refresh command was run on the current profile, and we are loading a different
+        // profile without a UI refresh command, run the previous one to restore things back to normal
+        ProfileState.UiRefresh uiRefresh = target;
+        if(current != ProfileState.UiRefresh.DO_NOTHING && target == ProfileState.UiRefresh.DO_NOTHING)
+            uiRefresh = current;
+
+        switch(uiRefresh) {
+            case DO_NOTHING:
+                clearSafeMode(c, plan);
+                break;
+            case SYSTEM_UI:
+                clearSafeMode(c, plan);
+
+                plan.setCommand(Slot.UI_REFRESH, waitForDisplay(c, plan, false) + U.uiRefreshCommand(c.context, false));
+                plan.setCommand(Slot.UI_REFRESH_2, U.uiRefreshCommand2(c.context));
+                break;
+            case ACTIVITY_MANAGER:
+                plan.setCommand(Slot.UI_REFRESH, waitForDisplay(c, plan, true) + U.uiRefreshCommand(c.context, true));
+                plan.restartActivityManager();
+                break;
+        }
+    }
+
+    @Override
+    void save(ActionContext c, ProfileState.UiRefresh target) {
+        c.editor.putString("ui_refresh", target.value);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        // Only refresh the UI if the resolution or density is being restored
+        if(c.journal != null && !c.journal.hasChanged("size") && !c.journal.hasChanged("density"))
+            return;
+
+        switch(c.current.profile.uiRefresh) {
+            case SYSTEM_UI:
+                plan.setCommand(Slot.UI_REFRESH, waitForDisplay(c, plan, false) + U.uiRefreshCommand(c.context, false));
+                plan.setCommand(Slot.UI_REFRESH_2, U.uiRefreshCommand2(c.context));
+                break;
+            case ACTIVITY_MANAGER:
+            case ACTIVITY_MANAGER_SAFE_MODE:
+                plan.setCommand(Slot.UI_REFRESH, waitForDisplay(c, plan, true) + U.uiRefreshCommand(c.context, true));
+                plan.restartActivityManager();
+                break;
+        }
+    }
+
+    // Only refresh the UI if any of these conditions are met:
+    // * Size and density commands need to be run
+    // * A profile is not already active
+    // * The user has changed the UI refresh method in the currently running profile
+    static boolean isNeeded(ActionContext c, Plan plan) {
+        return plan.sizeChanged
+                || plan.densityChanged
+                || !c.active
+                || c.current.forceUiRefresh;
+    }
+
+    // Don't refresh the UI until the new resolution and density have actually been applied.
+    // When turning off a profile using the journal, actions are reverted in reverse order,
+    // so the size and density actions haven't been planned yet; the journal says what they will reset.
+    // If neither is changing there is nothing to probe, but other settings may have just been
+    // written (navigation bar, immersive mode), so the fixed delay from before probes is kept:
+    // one second before restarting the ActivityManager, and two before restarting SystemUI.
+    private String waitForDisplay(ActionContext c, Plan plan, boolean restartActivityManager) {
+        String probe;
+        if(!c.isLoading() && c.journal != null)
+            probe = ReadinessProbe.waitForDisplay(c.context,
+                    c.journal.hasChanged("size") ? "reset" : null,
+                    c.journal.hasChanged("density") ? "reset" : null,
+                    c.restartsActivityManager());
+        else
+            probe = ReadinessProbe.waitForDisplay(c.context,
+                    plan.sizeChanged ? plan.size : null,
+                    plan.densityChanged ? plan.density : null,
+                    c.restartsActivityManager());
+
+        if(probe.equals(""))
+            return restartActivityManager ? "sleep 1; " : "sleep 2; ";
+
+        return probe;
+    }
+
+    // Clear any size and density values forced by safe mode, if the size or density is changing
+    private void clearSafeMode(ActionContext c, Plan plan) {
+        if(c.prefMain.getBoolean("safe_mode", false)) {
+            if(plan.sizeChanged)
+                plan.setCommand(Slot.SAFE_MODE_SIZE, U.safeModeSizeCommand + "null");
+
+            if(plan.densityChanged)
+                plan.setCommand(Slot.SAFE_MODE_DENSITY, U.safeModeDensityCommand + "null");
+        }
+    }
+}
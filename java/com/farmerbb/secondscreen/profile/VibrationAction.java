@@ -0,0 +1,84 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import com.farmerbb.secondscreen.util.SysfsWriter;
+
+import java.io.File;
+
+// Turns vibration off, by writing to the vibrator's sysfs file
+final class VibrationAction extends ProfileAction<Boolean> {
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.vibrationOff;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.vibrationOff;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        File vibrationOff = SysfsWriter.getVibration();
+
+        if(target) {
+            if(vibrationOff == null)
+                return;
+
+            // Read the current value, then turn vibration off
+            String vibrationValue = SysfsWriter.read(vibrationOff);
+            if(vibrationValue != null)
+                plan.setCommand(Slot.VIBRATION, SysfsWriter.writeCommand(vibrationOff, 0));
+
+            // Save the current vibration value for future use, if NOT 0 (vibration already off) or -1 (unsupported device).
+            // This should always be valid, because "vibration off" can only be set on a supported device (should never be -1)
+            if(vibrationValue != null && !(vibrationValue.equals("0") || vibrationValue.equals("-1")))
+                c.editor.putInt("vibration_value", Integer.parseInt(vibrationValue));
+        } else if(c.current.vibrationValue != -1) {
+            // Restore the value saved before any profiles were applied, then invalidate it
+            restore(c, plan);
+            c.editor.putInt("vibration_value", -1);
+        }
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("vibration_off", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.vibrationOff && c.current.vibrationValue != -1)
+            restore(c, plan);
+    }
+
+    @Override
+    void reapply(ActionContext c, Plan plan) {
+        if(c.current.profile.vibrationOff) {
+            File vibrationOff = SysfsWriter.getVibration();
+            if(vibrationOff != null)
+                plan.setCommand(Slot.VIBRATION, SysfsWriter.writeCommand(vibrationOff, 0));
+        }
+    }
+
+    private void restore(ActionContext c, Plan plan) {
+        File vibrationOff = SysfsWriter.getVibration();
+        if(vibrationOff != null)
+            plan.setCommand(Slot.VIBRATION, SysfsWriter.writeCommand(vibrationOff, c.current.vibrationValue));
+    }
+}
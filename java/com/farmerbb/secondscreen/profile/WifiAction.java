@@ -0,0 +1,64 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.profile;
+
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.net.wifi.WifiManager;
+
+// Turns Wi-Fi on while the profile is active
+final class WifiAction extends ProfileAction<Boolean> {
+
+    @Override
+    boolean isSupported(ActionContext c) {
+        return c.context.getPackageManager().hasSystemFeature(PackageManager.FEATURE_WIFI);
+    }
+
+    @Override
+    void capture(ActionContext c) {
+        WifiManager wifi = (WifiManager) c.context.getSystemService(Context.WIFI_SERVICE);
+        c.editor.putBoolean("wifi_on_system", wifi.isWifiEnabled());
+    }
+
+    @Override
+    Boolean current(ActionContext c) {
+        return c.active && c.current.profile.wifi;
+    }
+
+    @Override
+    Boolean target(ActionContext c) {
+        return c.target.wifi;
+    }
+
+    @Override
+    void apply(ActionContext c, Boolean current, Boolean target, Plan plan) {
+        if(target)
+            plan.setWifi(true);
+        else
+            plan.setWifi(c.current.wifiSystem);
+    }
+
+    @Override
+    void save(ActionContext c, Boolean target) {
+        c.editor.putBoolean("wifi_on", target);
+    }
+
+    @Override
+    void revert(ActionContext c, Plan plan) {
+        if(c.current.profile.wifi)
+            plan.setWifi(c.current.wifiSystem);
+    }
+}
@@ -18,13 +18,12 @@ package com.farmerbb.secondscreen.service;
 import android.app.IntentService;
 import android.content.Intent;
 import android.content.SharedPreferences;
-import android.provider.Settings;
 
+import com.farmerbb.secondscreen.profile.Plan;
+import com.farmerbb.secondscreen.profile.ProfileEngine;
+import com.farmerbb.secondscreen.util.StateStore;
 import com.farmerbb.secondscreen.util.U;
 
-import java.io.File;
-import java.util.Arrays;
-
 // Service launched by BootReceiver.  Certain profile options (backlight off, vibration off, etc)
 // do not stick after a device reboot; this service takes care of re-running any needed commands.
 public final class BootService extends IntentService {
@@ -41,71 +40,20 @@ public final class BootService extends IntentService {
     protected void onHandleIntent(Intent intent) {
         // Load preferences
         SharedPreferences prefCurrent = U.getPrefCurrent(this);
-        SharedPreferences prefMain = U.getPrefMain(this);
-
-        // Run superuser commands on boot
-        final int safeModeDensityCommand = 0;
-        final int safeModeSizeCommand = 1;
-        final int rotationPreCommand = 2;
-        final int rotationCommand = 3;
-        final int rotationPostCommand = 4;
-        final int vibrationCommand = 5;
-        final int backlightCommand = 6;
-
-        // Initialize su array
-        String[] su = new String[backlightCommand + 1];
-        Arrays.fill(su, "");
-
-        if("auto-rotate".equals(prefCurrent.getString("rotation_lock_new", "do-nothing"))) {
-            su[rotationCommand] = U.rotationCommand + Integer.toString(Intent.EXTRA_DOCK_STATE_DESK);
-            if(Settings.Secure.getInt(getContentResolver(), "screensaver_enabled", 0) == 1
-                    && Settings.Secure.getInt(getContentResolver(), "screensaver_activate_on_dock", 0) == 1) {
-                su[rotationPreCommand] = U.rotationPrePostCommands + "0";
-                su[rotationPostCommand] = U.rotationPrePostCommands + "1";
-            }
-        }
+        StateStore store = new StateStore();
 
-        if(prefCurrent.getBoolean("vibration_off", false)) {
-            // Set vibration command
-            for(File vibrationOff : U.vibrationOff) {
-                if(vibrationOff.exists()) {
-                    su[vibrationCommand] = "echo 0 > " + vibrationOff.getAbsolutePath();
-                    break;
-                }
-            }
-        }
+        // Work out which of the active profile's options need re-applying
+        Plan plan = ProfileEngine.planBoot(this, prefCurrent, store);
 
-        if(prefCurrent.getBoolean("backlight_off", false)) {
-            // Turn auto-brightness off so it doesn't mess with things
-            Settings.System.putInt(getContentResolver(), Settings.System.SCREEN_BRIGHTNESS_MODE, Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL);
+        // Perform non-root actions.
+        // The backlight command waits for the backlight to settle first, so these still go through before it.
+        plan.execute(this);
+        store.flush(plan.needsDurableState());
 
-            // Attempt to set screen brightness to 0 first to avoid complications later
-            Settings.System.putInt(getContentResolver(), Settings.System.SCREEN_BRIGHTNESS, 0);
-
-            // Set backlight command
-            for(File backlightOff : U.backlightOff) {
-                if(backlightOff.exists()) {
-                    su[backlightCommand] = "sleep 2 && echo 0 > " + backlightOff.getAbsolutePath();
-                    break;
-                }
-            }
-        }
-
-        if(prefMain.getBoolean("safe_mode", false) && "activity-manager".equals(prefCurrent.getString("ui_refresh", "do-nothing"))) {
-            su[safeModeSizeCommand] = U.safeModeSizeCommand + "null";
-            su[safeModeDensityCommand] = U.safeModeDensityCommand + "null";
-
-            SharedPreferences.Editor editor = prefCurrent.edit();
-            editor.putString("ui_refresh", "activity-manager-safe-mode");
-            editor.commit();
-        }
+        // Run superuser commands on boot
+        plan.runCommandsAsync(this);
 
-        // Run superuser commands
-        for(String command : su) {
-            if(!command.equals("")) {
-                U.runCommands(this, su);
-                break;
-            }
-        }
+        // Keep the service alive until the commands have finished
+        plan.await();
     }
 }
@@ -24,6 +24,7 @@ import android.view.Display;
 
 import com.farmerbb.secondscreen.activity.HdmiActivity;
 import com.farmerbb.secondscreen.activity.TurnOffActivity;
+import com.farmerbb.secondscreen.profile.ProfileStateMachine;
 import com.farmerbb.secondscreen.util.U;
 
 // This is a long-running service started if the "Enable auto-start" preference is set.
@@ -37,13 +38,12 @@ public final class DisplayConnectionService extends Service {
     DisplayManager.DisplayListener listener = new DisplayManager.DisplayListener() {
         @Override
         public void onDisplayAdded(int displayId) {
-            SharedPreferences prefCurrent = U.getPrefCurrent(DisplayConnectionService.this);
             DisplayManager dm = (DisplayManager) getSystemService(DISPLAY_SERVICE);
             Display[] displays = dm.getDisplays();
 
             try {
                 if(displays[displays.length - 2].getDisplayId() == Display.DEFAULT_DISPLAY
-                        && prefCurrent.getBoolean("not_active", true)) {
+                        && ProfileStateMachine.getState(DisplayConnectionService.this) == ProfileStateMachine.State.IDLE) {
                     Intent hdmiIntent = new Intent(DisplayConnectionService.this, HdmiActivity.class);
                     hdmiIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
                     startActivity(hdmiIntent);
@@ -65,8 +65,9 @@ public final class DisplayConnectionService extends Service {
             Display[] displays = dm.getDisplays();
 
             try {
+                // A profile that is still being loaded counts as active; the turn off is queued up behind it
                 if(displays[displays.length - 1].getDisplayId() == Display.DEFAULT_DISPLAY
-                        && !prefCurrent.getBoolean("not_active", true)) {
+                        && ProfileStateMachine.getState(DisplayConnectionService.this) != ProfileStateMachine.State.IDLE) {
                     SharedPreferences prefMain = U.getPrefMain(DisplayConnectionService.this);
                     if("quick_actions".equals(prefCurrent.getString("filename", "0"))) {
                         SharedPreferences prefSaved = U.getPrefQuickActions(DisplayConnectionService.this);
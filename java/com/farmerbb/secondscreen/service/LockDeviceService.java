@@ -26,8 +26,9 @@ import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.res.Configuration;
 import android.os.BatteryManager;
-import android.provider.Settings;
 
+import com.farmerbb.secondscreen.util.RootTask;
+import com.farmerbb.secondscreen.util.SettingsMirror;
 import com.farmerbb.secondscreen.util.U;
 
 import eu.chainfire.libsuperuser.Shell;
@@ -50,6 +51,22 @@ public final class LockDeviceService extends IntentService {
 
     @Override
     protected void onHandleIntent(Intent intent) {
+        // In order to ensure that the device locks itself when the following code is run,
+        // we need to temporarily set the lock screen lock after timeout value.
+        // For a smooth transition into the daydream, we set this value to one millisecond,
+        // locking the device at the soonest opportunity after the transition completes.
+        // The command runs in the background while we work out how to lock the device.
+        RootTask timeoutTask = null;
+        int timeout = SettingsMirror.getInt(this, SettingsMirror.Key.LOCK_SCREEN_LOCK_AFTER_TIMEOUT, 5000);
+        if(timeout != 1) {
+            SharedPreferences prefMain = U.getPrefMain(this);
+            SharedPreferences.Editor editor = prefMain.edit();
+            editor.putInt("timeout", timeout);
+            editor.apply();
+
+            timeoutTask = U.runCommandAsync(this, U.timeoutCommand + "1");
+        }
+
         // Close the notification drawer
         Intent closeDrawer = new Intent(Intent.ACTION_CLOSE_SYSTEM_DIALOGS);
         sendBroadcast(closeDrawer);
@@ -78,19 +95,10 @@ public final class LockDeviceService extends IntentService {
                 isDocked = false;
         }
 
-        // In order to ensure that the device locks itself when the following code is run,
-        // we need to temporarily set the lock screen lock after timeout value.
-        // For a smooth transition into the daydream, we set this value to one millisecond,
-        // locking the device at the soonest opportunity after the transition completes.
-        int timeout = Settings.Secure.getInt(getContentResolver(), "lock_screen_lock_after_timeout", 5000);
-        if(timeout != 1) {
-            SharedPreferences prefMain = U.getPrefMain(this);
-            SharedPreferences.Editor editor = prefMain.edit();
-            editor.putInt("timeout", Settings.Secure.getInt(getContentResolver(), "lock_screen_lock_after_timeout", 5000));
-            editor.apply();
-
-            U.runCommand(this, U.timeoutCommand + "1");
-        }
+        // The new timeout has to be in place before TimeoutService is scheduled to restore it,
+        // and before the device is locked
+        if(timeoutTask != null)
+            timeoutTask.await();
 
         // Schedule TimeoutService to reset lock screen timeout to original value
         Intent timeoutService = new Intent(this, TimeoutService.class);
@@ -102,9 +110,9 @@ public final class LockDeviceService extends IntentService {
         // If Daydreams is enabled and the device is charging, then lock the device by launching the daydream.
         if(isCharging
                 && !U.castScreenActive(this)
-                && Settings.Secure.getInt(getContentResolver(), "screensaver_enabled", 0) == 1
-                && ((Settings.Secure.getInt(getContentResolver(), "screensaver_activate_on_dock", 0) == 1 && isDocked)
-                || Settings.Secure.getInt(getContentResolver(), "screensaver_activate_on_sleep", 0) == 1)) {
+                && SettingsMirror.getInt(this, SettingsMirror.Key.SCREENSAVER_ENABLED, 0) == 1
+                && ((SettingsMirror.getInt(this, SettingsMirror.Key.SCREENSAVER_ACTIVATE_ON_DOCK, 0) == 1 && isDocked)
+                || SettingsMirror.getInt(this, SettingsMirror.Key.SCREENSAVER_ACTIVATE_ON_SLEEP, 0) == 1)) {
             // Send intent to launch the current daydream manually
             Intent lockIntent = new Intent(Intent.ACTION_MAIN);
             lockIntent.setComponent(ComponentName.unflattenFromString("com.android.systemui/.Somnambulator"));
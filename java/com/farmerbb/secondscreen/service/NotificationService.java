@@ -34,18 +34,22 @@ import com.farmerbb.secondscreen.R;
 import com.farmerbb.secondscreen.activity.MainActivity;
 import com.farmerbb.secondscreen.activity.TaskerQuickActionsActivity;
 import com.farmerbb.secondscreen.activity.TurnOffActivity;
+import com.farmerbb.secondscreen.util.BacklightEnforcer;
 import com.farmerbb.secondscreen.util.U;
 
 // The NotificationService is started whenever a profile is active, whether it be a user-created
 // profile or a temporary one created through Quick Actions.  In addition to generating and showing
 // a notification, the NotificationService is responsible for detecting when the screen is turned
 // off and back on,launching either the TempBacklightOnService or ScreenOnService to control the
-// backlight.  It will also temporarily restore the backlight if a display is connected or
-// disconnected while a profile is active.  Lastly, it is responsible for showing the
-// TurnOffActivity when the DisplayConnectionService is not running.
+// backlight.  Where it can, the BacklightEnforcer is used instead of the ScreenOnService, so that
+// the backlight is turned back off as soon as the panel turns on.  It will also temporarily
+// restore the backlight if a display is connected or disconnected while a profile is active.
+// Lastly, it is responsible for showing the TurnOffActivity when the DisplayConnectionService is
+// not running.
 public final class NotificationService extends Service {
 
     Notification.Builder mBuilder;
+    BacklightEnforcer enforcer;
 
     BroadcastReceiver screenOnReceiver = new BroadcastReceiver() {
         @Override
@@ -58,9 +62,10 @@ public final class NotificationService extends Service {
             if(U.castScreenActive(NotificationService.this)) {
                 Intent serviceIntent = new Intent(context, TempBacklightOnService.class);
                 context.startService(serviceIntent);
-            } else {
-                Intent serviceIntent = new Intent(context, ScreenOnService.class);
-                context.startService(serviceIntent);
+            } else if(!BacklightEnforcer.isSupported()
+                    || Intent.ACTION_DREAMING_STARTED.equals(intent.getAction())) {
+                // Otherwise, the panel turning on has already been picked up by the display listener
+                blankBacklight();
             }
         }
     };
@@ -77,8 +82,7 @@ public final class NotificationService extends Service {
 
             if(U.castScreenActive(NotificationService.this)
                     || screenOnTime < (System.currentTimeMillis() - 5000)) {
-                Intent serviceIntent = new Intent(context, ScreenOnService.class);
-                context.startService(serviceIntent);
+                blankBacklight();
             }
         }
     };
@@ -93,14 +97,14 @@ public final class NotificationService extends Service {
             DisplayManager dm = (DisplayManager) getSystemService(DISPLAY_SERVICE);
             Display[] displays = dm.getDisplays();
 
-            if(displays[displays.length - 2].getDisplayId() == Display.DEFAULT_DISPLAY) {
-                Intent serviceIntent = new Intent(NotificationService.this, ScreenOnService.class);
-                startService(serviceIntent);
-            }
+            if(displays[displays.length - 2].getDisplayId() == Display.DEFAULT_DISPLAY)
+                blankBacklight();
         }
 
         @Override
-        public void onDisplayChanged(int displayId) {}
+        public void onDisplayChanged(int displayId) {
+            enforcer.onDisplayChanged(displayId);
+        }
 
         @Override
         public void onDisplayRemoved(int displayId) {
@@ -147,6 +151,15 @@ public final class NotificationService extends Service {
         registerReceiver(screenOnReceiver, filter1);
         registerReceiver(userPresentReceiver, filter2);
 
+        // Run on the enforcer's thread if the backlight can't be enforced on this device
+        enforcer = new BacklightEnforcer(this, new Runnable() {
+            @Override
+            public void run() {
+                Intent serviceIntent = new Intent(NotificationService.this, ScreenOnService.class);
+                startService(serviceIntent);
+            }
+        });
+
         DisplayManager manager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         manager.registerDisplayListener(listener, null);
 
@@ -192,6 +205,8 @@ public final class NotificationService extends Service {
 
         DisplayManager manager = (DisplayManager) getSystemService(DISPLAY_SERVICE);
         manager.unregisterDisplayListener(listener);
+
+        enforcer.quit();
     }
 
     @Override
@@ -199,6 +214,11 @@ public final class NotificationService extends Service {
         return null;
     }
 
+    // Turns the backlight back off, through the BacklightEnforcer if possible
+    private void blankBacklight() {
+        enforcer.enforce();
+    }
+
     private void setActionButton(String key, SharedPreferences prefCurrent, int code) {
         Intent customIntent;
         PendingIntent customPendingIntent = null;
@@ -22,6 +22,9 @@ import android.hardware.display.DisplayManager;
 import android.provider.Settings;
 import android.view.Display;
 
+import com.farmerbb.secondscreen.util.ReadinessProbe;
+import com.farmerbb.secondscreen.util.RootTask;
+import com.farmerbb.secondscreen.util.SysfsWriter;
 import com.farmerbb.secondscreen.util.U;
 
 import java.io.File;
@@ -58,11 +61,12 @@ public final class ScreenOnService extends IntentService {
             Settings.System.putInt(getContentResolver(), Settings.System.SCREEN_BRIGHTNESS, 0);
 
             // Run superuser command to blank screen again after device was turned off
-            for(File backlightOff : U.backlightOff) {
-                if(backlightOff.exists()) {
-                    U.runCommand(this, "sleep 2 && echo 0 > " + backlightOff.getAbsolutePath());
-                    break;
-                }
+            File backlightOff = SysfsWriter.getBacklight();
+            if(backlightOff != null) {
+                // Wait for the backlight to settle first, so the dimming doesn't overwrite it
+                U.runCommandAsync(this, ReadinessProbe.waitForBacklight(this, backlightOff) + SysfsWriter.writeCommand(backlightOff, 0))
+                        .addCallback(ReadinessProbe.getLearner(this), RootTask.DIRECT)
+                        .await();
             }
         }
     }
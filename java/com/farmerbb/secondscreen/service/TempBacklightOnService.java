@@ -20,6 +20,7 @@ import android.content.Intent;
 import android.content.SharedPreferences;
 import android.provider.Settings;
 
+import com.farmerbb.secondscreen.util.SysfsWriter;
 import com.farmerbb.secondscreen.util.U;
 
 import java.io.File;
@@ -51,12 +52,9 @@ public final class TempBacklightOnService extends IntentService {
 
             if(prefCurrent.getInt("backlight_value", -1) <= 10) {
                 // Manually update the sysfs value to guarantee that the backlight will restore
-                for(File backlightOff : U.backlightOff) {
-                    if(backlightOff.exists()) {
-                        U.runCommand(this, "echo " + Integer.toString(prefCurrent.getInt("backlight_value", -1)) + " > " + backlightOff.getAbsolutePath());
-                        break;
-                    }
-                }
+                File backlightOff = SysfsWriter.getBacklight();
+                if(backlightOff != null)
+                    U.runCommand(this, SysfsWriter.writeCommand(backlightOff, prefCurrent.getInt("backlight_value", -1)));
             }
         }
     }
@@ -0,0 +1,270 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.display.DisplayManager;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.view.Display;
+
+import java.io.File;
+
+// Keeps the backlight off while a profile with "backlight off" is active and an external display
+// is connected.  Rather than waiting for the screen on broadcast and then for the backlight to
+// settle (see ScreenOnService), it blanks the backlight as soon as the built-in panel turns on
+// (Display.getState(), from Android 4.4W), then keeps reading the sysfs node for a while and
+// blanks it again whenever something lights it back up.  Reading the node doesn't need root, so
+// only the writes that are actually needed go through su.
+//
+// The backlight is watched for the whole WATCH_TIME after each event, however many times it comes
+// back on (panel drivers ramp it up, and the power manager can rewrite it), but it is written at
+// most once every WRITE_INTERVAL.  For each wake, the time from the event until the backlight
+// stayed off, the number of writes, and how many of them didn't take effect are kept in
+// backlight_metrics.xml; a wake is counted as failed if the backlight was still on at the end.
+public final class BacklightEnforcer {
+
+    // How long to keep watching the backlight after each event, in milliseconds
+    private static final long WATCH_TIME = 3000;
+
+    // How often to read the backlight while watching, in milliseconds
+    private static final long POLL_INTERVAL = 50;
+
+    // Least time between two writes for the same wake, in milliseconds
+    private static final long WRITE_INTERVAL = 250;
+
+    private final Context context;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    // Run on the enforcer's thread when the backlight can't be enforced on this device
+    private final Runnable fallback;
+
+    // Only used on the main thread, where display listeners are called
+    private int lastState = Display.STATE_UNKNOWN;
+
+    // Only used on the enforcer's own thread.  wakeTime is -1 while not watching.
+    private File node;
+    private long wakeTime = -1;
+    private long watchUntil;
+    private long blankTime;
+    private long lastWriteTime;
+    private int writes;
+    private int failedWrites;
+    private boolean off;
+
+    private final Runnable poll = new Runnable() {
+        @Override
+        public void run() {
+            long now = SystemClock.elapsedRealtime();
+            String value = SysfsWriter.read(node);
+
+            if(value != null && !isOff(value) && now - lastWriteTime >= WRITE_INTERVAL) {
+                U.runCommand(context, SysfsWriter.writeCommand(node, 0));
+                writes++;
+                lastWriteTime = SystemClock.elapsedRealtime();
+
+                // Writing to sysfs takes effect right away, or not at all
+                value = SysfsWriter.read(node);
+                if(isOff(value))
+                    blankTime = lastWriteTime;
+                else
+                    failedWrites++;
+            }
+
+            off = isOff(value);
+
+            if(now < watchUntil)
+                handler.postDelayed(this, POLL_INTERVAL);
+            else
+                finish();
+        }
+    };
+
+    public BacklightEnforcer(Context context, Runnable fallback) {
+        this.context = context.getApplicationContext();
+        this.fallback = fallback;
+
+        thread = new HandlerThread("BacklightEnforcer");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+
+        // So that a panel which is already on isn't taken as turning on
+        if(isSupported())
+            lastState = getState();
+    }
+
+    // Whether panel state changes can be seen; before Android 4.4W, callers have to go by
+    // the screen on broadcast instead
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT_WATCH;
+    }
+
+    // To be called from DisplayListener.onDisplayChanged()
+    @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
+    public void onDisplayChanged(int displayId) {
+        if(!isSupported() || displayId != Display.DEFAULT_DISPLAY)
+            return;
+
+        int state = getState();
+        if(state == Display.STATE_UNKNOWN)
+            return;
+
+        if(state == Display.STATE_ON && lastState != Display.STATE_ON) {
+            final long eventTime = SystemClock.elapsedRealtime();
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    // While casting the screen, the screen on broadcast has already started
+                    // TempBacklightOnService, so there is nothing to fall back to
+                    if(U.castScreenActive(context))
+                        return;
+
+                    start(eventTime);
+                }
+            });
+        } else if(state == Display.STATE_OFF) {
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    stop();
+                }
+            });
+        }
+
+        lastState = state;
+    }
+
+    // Blanks the backlight now, and keeps it blank for a while, if the active profile calls for it.
+    // If the backlight node can't be read on this device, or in debug mode (where commands aren't
+    // run, so the backlight would never read as off), the fallback is run instead, so that the
+    // caller can use ScreenOnService.
+    public void enforce() {
+        final long eventTime = SystemClock.elapsedRealtime();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                start(eventTime);
+            }
+        });
+    }
+
+    // Records a wake that is still being watched, then stops the enforcer's thread
+    public void quit() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+                thread.quit();
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.KITKAT_WATCH)
+    private int getState() {
+        DisplayManager dm = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        Display display = dm.getDisplay(Display.DEFAULT_DISPLAY);
+        return display == null ? Display.STATE_UNKNOWN : display.getState();
+    }
+
+    private void start(long eventTime) {
+        File backlight = SysfsWriter.getBacklight();
+        if(U.getPrefMain(context).getBoolean("debug_mode", false)
+                || backlight == null
+                || SysfsWriter.read(backlight) == null) {
+            fallback.run();
+            return;
+        }
+
+        if(!isNeeded())
+            return;
+
+        // The same wake can be reported more than once (for example by the display listener, and
+        // then by the user present broadcast); it is just watched for longer, and counted once
+        watchUntil = eventTime + WATCH_TIME;
+        if(wakeTime != -1)
+            return;
+
+        node = backlight;
+        wakeTime = eventTime;
+        blankTime = eventTime;
+        lastWriteTime = eventTime - WRITE_INTERVAL;
+        writes = 0;
+        failedWrites = 0;
+        off = false;
+
+        // Turn auto-brightness off so it doesn't mess with things
+        Settings.System.putInt(context.getContentResolver(), Settings.System.SCREEN_BRIGHTNESS_MODE, Settings.System.SCREEN_BRIGHTNESS_MODE_MANUAL);
+
+        // Attempt to set screen brightness to 0 first to avoid complications later
+        Settings.System.putInt(context.getContentResolver(), Settings.System.SCREEN_BRIGHTNESS, 0);
+
+        poll.run();
+    }
+
+    private void stop() {
+        handler.removeCallbacks(poll);
+        if(wakeTime != -1)
+            finish();
+    }
+
+    private void finish() {
+        long timeToBlank = blankTime - wakeTime;
+        wakeTime = -1;
+        handler.removeCallbacks(poll);
+
+        SharedPreferences pref = U.getPrefSaved(context, "backlight_metrics");
+        SharedPreferences.Editor editor = pref.edit();
+        editor.putInt("wake_events", pref.getInt("wake_events", 0) + 1);
+        editor.putLong("last_time_to_blank", timeToBlank);
+        editor.putLong("total_time_to_blank", pref.getLong("total_time_to_blank", 0) + timeToBlank);
+        editor.putLong("max_time_to_blank", Math.max(timeToBlank, pref.getLong("max_time_to_blank", 0)));
+        editor.putInt("last_writes", writes);
+        editor.putInt("total_writes", pref.getInt("total_writes", 0) + writes);
+        editor.putInt("last_failed_writes", failedWrites);
+        editor.putInt("total_failed_writes", pref.getInt("total_failed_writes", 0) + failedWrites);
+        editor.putBoolean("last_failed", !off);
+
+        if(!off)
+            editor.putInt("failed_wakes", pref.getInt("failed_wakes", 0) + 1);
+
+        editor.apply();
+    }
+
+    private static boolean isOff(String value) {
+        return value != null && value.trim().equals("0");
+    }
+
+    // Same conditions as ScreenOnService, except that while casting the screen,
+    // TempBacklightOnService is in charge of the backlight
+    private boolean isNeeded() {
+        SharedPreferences prefCurrent = U.getPrefCurrent(context);
+        if(prefCurrent.getBoolean("not_active", true) || !prefCurrent.getBoolean("backlight_off", false))
+            return false;
+
+        DisplayManager dm = (DisplayManager) context.getSystemService(Context.DISPLAY_SERVICE);
+        Display[] displays = dm.getDisplays();
+
+        return displays[displays.length - 1].getDisplayId() != Display.DEFAULT_DISPLAY
+                && !U.castScreenActive(context);
+    }
+}
@@ -0,0 +1,163 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+// Wraps the resolution and density commands so that they check their own work.  After running
+// a command, the value is read back ("wm size" / "wm density", or the forced settings used with
+// "Restart ActivityManager") in the same root session, and the command is run again if it didn't
+// take, up to MAX_ATTEMPTS times.  Each wrapped command prints how many attempts it needed;
+// these reports are tallied in command_stats.xml, to give a success rate for each step.
+public final class CommandVerifier {
+
+    public enum Step { SIZE, DENSITY }
+
+    // Maximum number of times a command is run before giving up
+    static final int MAX_ATTEMPTS = 3;
+
+    // Prefix of the lines printed by verified commands
+    private static final String REPORT = "ss_verify ";
+
+    private CommandVerifier() {}
+
+    // Command to change the resolution, or to reset it if size is "reset"
+    public static String size(String size, boolean forced) {
+        if(forced)
+            return verify(Step.SIZE, U.safeModeSizeCommand + ("reset".equals(size) ? "null" : size.replace('x', ',')), sizeCondition(size, true), true);
+        else
+            return verify(Step.SIZE, U.sizeCommand(size), sizeCondition(size, false), false);
+    }
+
+    // Command to change the density, or to reset it if density is "reset"
+    public static String density(String density, boolean forced) {
+        if(forced)
+            return verify(Step.DENSITY, U.safeModeDensityCommand + ("reset".equals(density) ? "null" : density), densityCondition(density, true), true);
+        else
+            return verify(Step.DENSITY, U.densityCommand(density), densityCondition(density, false), false);
+    }
+
+    // Shell condition that holds once the resolution has been applied
+    static String sizeCondition(String size, boolean forced) {
+        if(forced)
+            return "[ \"$(settings get global display_size_forced)\" = \""
+                    + ("reset".equals(size) ? "null" : size.replace('x', ',')) + "\" ]";
+        else if("reset".equals(size))
+            return "! wm size | grep -q Override";
+        else
+            return "wm size | grep -q \"Override size: " + size + "\"";
+    }
+
+    // Shell condition that holds once the density has been applied
+    static String densityCondition(String density, boolean forced) {
+        if(forced)
+            return "[ \"$(settings get global display_density_forced)\" = \""
+                    + ("reset".equals(density) ? "null" : density) + "\" ]";
+        else if("reset".equals(density))
+            return "! wm density | grep -q Override";
+        else
+            return "wm density | grep -q \"Override density: " + density + "\"";
+    }
+
+    // Callback for RootTasks running verified commands
+    public static RootTask.Callback getRecorder(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new RootTask.Callback() {
+            @Override
+            public void onComplete(RootSessionPool.Result result) {
+                if(result != null)
+                    record(appContext, result);
+            }
+        };
+    }
+
+    // Fraction of runs of the given step that ended up taking effect, or -1 if it has never run
+    public static float getSuccessRate(Context context, Step step) {
+        SharedPreferences pref = U.getPrefSaved(context, "command_stats");
+        String name = step.name().toLowerCase();
+
+        int runs = pref.getInt(name + "_runs", 0);
+        if(runs == 0)
+            return -1;
+
+        return (float) (runs - pref.getInt(name + "_failures", 0)) / runs;
+    }
+
+    // Fraction of runs of the given step that took effect on the first attempt, or -1 if it has never run
+    public static float getFirstAttemptRate(Context context, Step step) {
+        SharedPreferences pref = U.getPrefSaved(context, "command_stats");
+        String name = step.name().toLowerCase();
+
+        int runs = pref.getInt(name + "_runs", 0);
+        if(runs == 0)
+            return -1;
+
+        return (float) (runs - pref.getInt(name + "_failures", 0) - pref.getInt(name + "_retried", 0)) / runs;
+    }
+
+    // Tallies the reports printed by verified commands
+    static void record(Context context, RootSessionPool.Result result) {
+        SharedPreferences pref = U.getPrefSaved(context, "command_stats");
+        SharedPreferences.Editor editor = null;
+
+        for(String line : result.getOutput()) {
+            if(!line.startsWith(REPORT))
+                continue;
+
+            String[] report = line.substring(REPORT.length()).split(" ");
+            if(report.length != 2)
+                continue;
+
+            Step step;
+            int attempts;
+            try {
+                step = Step.valueOf(report[0]);
+                attempts = Integer.parseInt(report[1]);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+
+            if(editor == null)
+                editor = pref.edit();
+
+            String name = step.name().toLowerCase();
+            editor.putInt(name + "_runs", pref.getInt(name + "_runs", 0) + 1);
+
+            if(attempts < 0)
+                editor.putInt(name + "_failures", pref.getInt(name + "_failures", 0) + 1);
+            else if(attempts > 1)
+                editor.putInt(name + "_retried", pref.getInt(name + "_retried", 0) + 1);
+        }
+
+        if(editor != null)
+            editor.apply();
+    }
+
+    // Runs the command, then runs it again for as long as the condition doesn't hold,
+    // and reports the number of attempts (or -1 if it never took)
+    private static String verify(Step step, String command, String condition, boolean forced) {
+        // Before Android 4.3 there is no "wm" command to read the values back from
+        if(!forced && Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return command;
+
+        return command + "; ss_n=1; until { " + condition + "; }; do "
+                + "if [ $ss_n -ge " + Integer.toString(MAX_ATTEMPTS) + " ]; then ss_n=-1; break; fi; "
+                + command + "; ss_n=$((ss_n+1)); done; "
+                + "echo \"" + REPORT + step.name() + " $ss_n\"";
+    }
+}
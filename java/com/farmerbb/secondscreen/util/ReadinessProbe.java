@@ -0,0 +1,199 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+
+import java.io.File;
+
+// Generates shell snippets that wait for the device to be ready for the next command, instead of
+// sleeping for a fixed amount of time.  Each probe polls a condition (such as "wm size" reporting
+// the requested resolution) until it holds, or until a timeout runs out, then prints how long it
+// waited.  These reports are fed back through learn(), so that timeouts adapt to the device:
+// a probe that is usually satisfied quickly gets a short timeout, and a probe that keeps timing
+// out (because its condition can't be observed on this device) falls back to the fixed delay
+// that it replaces.  Learned values are kept in readiness_probes.xml.
+public final class ReadinessProbe {
+
+    public enum Type {
+        // Resolution and density have been applied
+        DISPLAY(2000),
+
+        // SystemUI has been restarted
+        SYSTEMUI(1000),
+
+        // The backlight has finished dimming
+        BACKLIGHT(2000);
+
+        // The fixed delay (in milliseconds) this probe replaces, used until something has been learned
+        final long fallback;
+
+        Type(long fallback) {
+            this.fallback = fallback;
+        }
+    }
+
+    // Bounds for learned timeouts, in milliseconds
+    private static final long MIN_TIMEOUT = 500;
+    private static final int MAX_TIMEOUT_FACTOR = 2;
+
+    // Learned timeouts allow this many times the average wait
+    private static final int HEADROOM = 3;
+
+    // Probes that time out this many times in a row go back to their fallback delay
+    private static final int MAX_TIMEOUTS = 3;
+
+    // Backlight values at or below this are taken to be fully dimmed
+    private static final int BACKLIGHT_MIN = 1;
+
+    // Prefix of the lines printed by probes
+    private static final String REPORT = "ss_probe ";
+
+    private ReadinessProbe() {}
+
+    // Waits for "wm size" and "wm density" (or the forced values used with "Restart ActivityManager")
+    // to report the requested values.  Pass null for anything that isn't changing.
+    public static String waitForDisplay(Context context, String size, String density, boolean forced) {
+        String condition = "";
+
+        if(size != null)
+            condition = CommandVerifier.sizeCondition(size, forced);
+
+        if(density != null) {
+            String densityCondition = CommandVerifier.densityCondition(density, forced);
+            condition = condition.equals("") ? densityCondition : condition + " && " + densityCondition;
+        }
+
+        if(condition.equals(""))
+            return "";
+
+        // Before Android 4.3 there is no "wm" command to read the values back from
+        if(!forced && Build.VERSION.SDK_INT <= Build.VERSION_CODES.JELLY_BEAN_MR1)
+            return "sleep " + Long.toString(Type.DISPLAY.fallback / 1000) + "; ";
+
+        return waitFor(context, Type.DISPLAY, condition);
+    }
+
+    // Waits for SystemUI to come back with a new pid, after being killed by U.uiRefreshCommand().
+    // Must be part of the same command string that sets $ss_systemui to the old pid, since the
+    // condition holds straight away if the variable is empty.
+    public static String waitForSystemUi(Context context) {
+        String condition;
+        if(Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1)
+            condition = "ss_pid=$(pidof com.android.systemui); [ -n \"$ss_pid\" ] && [ \"$ss_pid\" != \"$ss_systemui\" ]";
+        else
+            condition = "ps | grep com.android.systemui | grep -qv \" $ss_systemui \"";
+
+        return waitFor(context, Type.SYSTEMUI, condition);
+    }
+
+    // Waits for the backlight to stop changing, after the brightness has been set to 0.  Two equal
+    // readings only count once the value has moved away from the first one (or is already at the
+    // bottom), since dimming may not have started yet.  If that is never seen, the probe waits
+    // at least the fallback delay.
+    public static String waitForBacklight(Context context, File backlight) {
+        String read = "$(cat " + backlight.getAbsolutePath() + ")";
+        return "ss_first=" + read + "; ss_last=; " + waitFor(Type.BACKLIGHT,
+                "ss_value=" + read + "; [ \"$ss_value\" = \"$ss_last\" ] "
+                        + "&& { [ \"$ss_value\" != \"$ss_first\" ] || [ \"$ss_value\" -le " + Integer.toString(BACKLIGHT_MIN) + " ]; } "
+                        + "|| { ss_last=$ss_value; false; }",
+                Math.max(getTimeout(context, Type.BACKLIGHT), Type.BACKLIGHT.fallback));
+    }
+
+    // Callback for RootTasks running commands that contain probes
+    public static RootTask.Callback getLearner(final Context context) {
+        final Context appContext = context.getApplicationContext();
+        return new RootTask.Callback() {
+            @Override
+            public void onComplete(RootSessionPool.Result result) {
+                if(result != null)
+                    learn(appContext, result);
+            }
+        };
+    }
+
+    // Updates the learned timeouts from the reports printed by probes
+    static void learn(Context context, RootSessionPool.Result result) {
+        SharedPreferences pref = U.getPrefSaved(context, "readiness_probes");
+        SharedPreferences.Editor editor = null;
+
+        for(String line : result.getOutput()) {
+            if(!line.startsWith(REPORT))
+                continue;
+
+            String[] report = line.substring(REPORT.length()).split(" ");
+            if(report.length != 2)
+                continue;
+
+            Type type;
+            long waited;
+            try {
+                type = Type.valueOf(report[0]);
+                waited = Long.parseLong(report[1]);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+
+            if(editor == null)
+                editor = pref.edit();
+
+            String name = type.name().toLowerCase();
+            if(waited < 0)
+                editor.putInt(name + "_timeouts", pref.getInt(name + "_timeouts", 0) + 1);
+            else {
+                // Exponentially weighted average of how long the probe waited
+                long average = pref.getLong(name + "_average", -1);
+                editor.putLong(name + "_average", average < 0 ? waited : (average * 3 + waited) / 4);
+                editor.putInt(name + "_timeouts", 0);
+            }
+        }
+
+        if(editor != null)
+            editor.apply();
+    }
+
+    // How long a probe may wait before giving up, in milliseconds
+    private static long getTimeout(Context context, Type type) {
+        SharedPreferences pref = U.getPrefSaved(context, "readiness_probes");
+        String name = type.name().toLowerCase();
+
+        long average = pref.getLong(name + "_average", -1);
+        if(average < 0 || pref.getInt(name + "_timeouts", 0) >= MAX_TIMEOUTS)
+            return type.fallback;
+
+        return Math.max(MIN_TIMEOUT, Math.min(average * HEADROOM, type.fallback * MAX_TIMEOUT_FACTOR));
+    }
+
+    // Polls the condition until it holds or the timeout runs out, then reports how long it waited
+    // (in milliseconds, or -1 on a timeout).  Always succeeds, so it can be followed by "; command".
+    private static String waitFor(Context context, Type type, String condition) {
+        return waitFor(type, condition, getTimeout(context, type));
+    }
+
+    private static String waitFor(Type type, String condition, long timeout) {
+        // Fractional sleeps are only supported by toybox (Android 6.0 and later)
+        long tick = Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1 ? 100 : 1000;
+        long ticks = (timeout + tick - 1) / tick;
+
+        return "ss_i=0; while [ $ss_i -lt " + Long.toString(ticks) + " ] && ! { " + condition + "; }; do "
+                + "sleep " + (tick == 1000 ? "1" : "0." + Long.toString(tick / 100)) + "; ss_i=$((ss_i+1)); done; "
+                + "if [ $ss_i -lt " + Long.toString(ticks) + " ]; "
+                + "then echo \"" + REPORT + type.name() + " $((ss_i*" + Long.toString(tick) + "))\"; "
+                + "else echo \"" + REPORT + type.name() + " -1\"; fi; ";
+    }
+}
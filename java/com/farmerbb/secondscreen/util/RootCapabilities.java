@@ -0,0 +1,134 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.io.File;
+
+import eu.chainfire.libsuperuser.Shell;
+
+// Cached description of what the device's su binary can do.  Probing for root means spawning a
+// su process, so the result is kept in memory and persisted to root_capabilities.xml.
+// The cache is thrown away if the su binary changes (by modification time), once it is older
+// than its TTL, or if a root command fails (see invalidate()).
+public final class RootCapabilities {
+
+    // How long a probe result stays valid, in milliseconds.
+    // Negative results expire quickly, so that granting root access is picked up right away.
+    private static final long TTL_AVAILABLE = 24 * 60 * 60 * 1000;
+    private static final long TTL_UNAVAILABLE = 30 * 1000;
+
+    // Known su binary locations, used to detect if su has been installed, removed or updated
+    private static final File[] suBinaries = {
+            new File("/system/xbin/su"),
+            new File("/system/bin/su"),
+            new File("/sbin/su"),
+            new File("/su/bin/su"),
+            new File("/system/sbin/su"),
+            new File("/vendor/bin/su"),
+            new File("/magisk/.core/bin/su")};
+
+    private static RootCapabilities cached;
+    private static boolean invalidated = false;
+
+    public final boolean rootAvailable;
+    public final boolean seLinuxEnforcing;
+
+    private final long suModified;
+    private final long checkedAt;
+
+    private RootCapabilities(boolean rootAvailable, boolean seLinuxEnforcing, long suModified, long checkedAt) {
+        this.rootAvailable = rootAvailable;
+        this.seLinuxEnforcing = seLinuxEnforcing;
+        this.suModified = suModified;
+        this.checkedAt = checkedAt;
+    }
+
+    // Returns the current capabilities, probing su only if the cached result is no longer valid
+    public static synchronized RootCapabilities get(Context context) {
+        long suModified = getSuModified();
+
+        if(cached == null && !invalidated)
+            cached = load(context);
+
+        if(cached != null && cached.isValid(suModified))
+            return cached;
+
+        cached = probe(suModified);
+        invalidated = false;
+        save(context, cached);
+
+        return cached;
+    }
+
+    // Forgets the cached result; the next call to get() will probe su again.
+    // Called whenever a root command fails.
+    public static synchronized void invalidate() {
+        cached = null;
+        invalidated = true;
+    }
+
+    private boolean isValid(long suModified) {
+        if(suModified != this.suModified)
+            return false;
+
+        long age = System.currentTimeMillis() - checkedAt;
+        return age >= 0 && age < (rootAvailable ? TTL_AVAILABLE : TTL_UNAVAILABLE);
+    }
+
+    private static long getSuModified() {
+        long modified = 0;
+
+        for(File su : suBinaries) {
+            modified = Math.max(modified, su.lastModified());
+        }
+
+        return modified;
+    }
+
+    private static RootCapabilities probe(long suModified) {
+        // Drop libsuperuser's own in-memory caches, as they may be just as stale as ours
+        Shell.SU.clearCachedResults();
+
+        return new RootCapabilities(Shell.SU.available(), Shell.SU.isSELinuxEnforcing(),
+                suModified, System.currentTimeMillis());
+    }
+
+    private static RootCapabilities load(Context context) {
+        SharedPreferences pref = U.getPrefSaved(context, "root_capabilities");
+        if(!pref.contains("checked_at"))
+            return null;
+
+        return new RootCapabilities(
+                pref.getBoolean("root_available", false),
+                pref.getBoolean("selinux_enforcing", false),
+                pref.getLong("su_modified", 0),
+                pref.getLong("checked_at", 0));
+    }
+
+    private static void save(Context context, RootCapabilities capabilities) {
+        SharedPreferences pref = U.getPrefSaved(context, "root_capabilities");
+        SharedPreferences.Editor editor = pref.edit();
+        editor.clear();
+        editor.putBoolean("root_available", capabilities.rootAvailable);
+        editor.putBoolean("selinux_enforcing", capabilities.seLinuxEnforcing);
+        editor.putLong("su_modified", capabilities.suModified);
+        editor.putLong("checked_at", capabilities.checkedAt);
+        editor.apply();
+    }
+}
@@ -0,0 +1,264 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.Context;
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.AsyncTask;
+import android.os.SystemClock;
+
+import com.farmerbb.secondscreen.helper.HelperProtocol;
+import com.farmerbb.secondscreen.helper.RootHelper;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// App side of the resident RootHelper.  Optional ("root_helper" in the main preferences): when it
+// is turned off, or the helper can't be started, commands go to the pooled root sessions as before.
+// The helper is started through su the first time it is needed, and a whole batch of commands is
+// then sent over a single connection, with a response code (and output) coming back for each.
+// Consecutive "settings put" commands are sent as one request, and written in one go.
+public final class RootHelperClient {
+
+    // How long to wait (in milliseconds) for a freshly started helper to start listening
+    private static final long START_TIMEOUT = 3000;
+
+    // After failing to start the helper, don't try again for this long (in milliseconds)
+    private static final long RETRY_INTERVAL = 60000;
+
+    // Read timeout for a single response, in milliseconds.  Readiness probes and verified commands
+    // can take a while, but nothing should take longer than the root session watchdog.
+    private static final int READ_TIMEOUT = 35000;
+
+    // Read timeout for the response to an exit request, in milliseconds
+    private static final int SHUTDOWN_TIMEOUT = 1000;
+
+    private static final Object lock = new Object();
+    private static long lastStartFailure = -RETRY_INTERVAL;
+
+    private RootHelperClient() {}
+
+    public static boolean isEnabled(Context context) {
+        return U.getPrefMain(context).getBoolean("root_helper", false);
+    }
+
+    // Runs commands through the helper.  Empty commands are skipped.  Returns null if the helper
+    // is turned off or can't be reached, in which case none of the commands have been run.
+    // If the helper goes away part way through the batch, the result is incomplete:
+    // Result.getCompleted() tells how far it got (see RootTask.run()).
+    static RootSessionPool.Result run(Context context, String[] commands) {
+        if(!isEnabled(context))
+            return null;
+
+        long start = SystemClock.elapsedRealtime();
+
+        List<String> filtered = new ArrayList<>();
+        for(String command : commands) {
+            if(command != null && !command.equals(""))
+                filtered.add(command);
+        }
+
+        String[] batch = filtered.toArray(new String[filtered.size()]);
+        if(batch.length == 0)
+            return null;
+
+        // Merge each run of settings requests into one; only consecutive ones, so that they are
+        // still written in the same order relative to everything else.
+        // counts holds the number of commands each request covers.
+        List<HelperProtocol.Request> requests = new ArrayList<>();
+        List<Integer> counts = new ArrayList<>();
+        List<HelperProtocol.Request> settings = new ArrayList<>();
+
+        for(String command : batch) {
+            HelperProtocol.Request request = HelperProtocol.Request.parse(command);
+            if(request.type == HelperProtocol.TYPE_SETTINGS) {
+                settings.add(request);
+                continue;
+            }
+
+            addSettings(requests, counts, settings);
+            requests.add(request);
+            counts.add(1);
+        }
+
+        addSettings(requests, counts, settings);
+
+        // A helper left over from a different build of the app exits when it is first used;
+        // start a new one and try again, once
+        for(int attempt = 0; attempt < 2; attempt++) {
+            LocalSocket socket = connect(context);
+            if(socket == null)
+                return null;
+
+            RootSessionPool.Result result = new RootSessionPool.Result(batch);
+
+            try {
+                socket.setSoTimeout(READ_TIMEOUT);
+                DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                DataInputStream in = new DataInputStream(socket.getInputStream());
+
+                HelperProtocol.writeBatch(out, context.getPackageCodePath(), requests);
+
+                boolean badVersion = false;
+                int index = 0;
+                for(int i = 0; i < requests.size() && !badVersion; i++) {
+                    HelperProtocol.Response response = HelperProtocol.readResponse(in);
+                    int count = counts.get(i);
+
+                    if(response.code == HelperProtocol.CODE_BAD_VERSION)
+                        badVersion = true;
+                    else if(requests.get(i).type == HelperProtocol.TYPE_SETTINGS) {
+                        // One line of output per key, with its exit code
+                        for(int j = 0; j < count; j++) {
+                            result.exitCodes[index + j] = getExitCode(response, j);
+                            result.outputs.set(index + j, new ArrayList<String>());
+                        }
+                    } else {
+                        result.exitCodes[index] = response.getExitCode();
+                        result.outputs.set(index, response.output);
+                    }
+
+                    index += count;
+                }
+
+                if(badVersion)
+                    continue;
+            } catch (IOException e) {
+                // Helper died; the result is left incomplete
+            } finally {
+                close(socket);
+            }
+
+            result.elapsed = SystemClock.elapsedRealtime() - start;
+            return result;
+        }
+
+        return null;
+    }
+
+    private static void addSettings(List<HelperProtocol.Request> requests, List<Integer> counts,
+                                    List<HelperProtocol.Request> settings) {
+        if(settings.isEmpty())
+            return;
+
+        requests.add(HelperProtocol.Request.merge(settings));
+        counts.add(settings.size());
+        settings.clear();
+    }
+
+    private static int getExitCode(HelperProtocol.Response response, int key) {
+        if(response.code != HelperProtocol.CODE_OK || response.output.size() <= key)
+            return response.getExitCode();
+
+        try {
+            return Integer.parseInt(response.output.get(key));
+        } catch (NumberFormatException e) {
+            return response.getExitCode();
+        }
+    }
+
+    // Asks the helper to exit, if it is running.  Returns right away; the request is sent
+    // in the background, so this can be called from the main thread.
+    public static void shutdown(Context context) {
+        final String classPath = context.getPackageCodePath();
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                LocalSocket socket = tryConnect();
+                if(socket == null)
+                    return;
+
+                try {
+                    socket.setSoTimeout(SHUTDOWN_TIMEOUT);
+
+                    List<HelperProtocol.Request> requests = new ArrayList<>();
+                    requests.add(HelperProtocol.Request.exit());
+
+                    HelperProtocol.writeBatch(new DataOutputStream(socket.getOutputStream()), classPath, requests);
+                    HelperProtocol.readResponse(new DataInputStream(socket.getInputStream()));
+                } catch (IOException e) { /* exited already */ } finally {
+                    close(socket);
+                }
+            }
+        });
+    }
+
+    // Connects to the helper, starting it first if it isn't running
+    private static LocalSocket connect(Context context) {
+        LocalSocket socket = tryConnect();
+        if(socket != null)
+            return socket;
+
+        synchronized(lock) {
+            // Another thread may have started it in the meantime
+            socket = tryConnect();
+            if(socket != null)
+                return socket;
+
+            if(SystemClock.elapsedRealtime() - lastStartFailure < RETRY_INTERVAL)
+                return null;
+
+            if(RootSessionPool.run(new String[]{getStartCommand(context)}) != null) {
+                long deadline = SystemClock.elapsedRealtime() + START_TIMEOUT;
+                while(SystemClock.elapsedRealtime() < deadline) {
+                    socket = tryConnect();
+                    if(socket != null)
+                        return socket;
+
+                    SystemClock.sleep(50);
+                }
+            }
+
+            lastStartFailure = SystemClock.elapsedRealtime();
+            return null;
+        }
+    }
+
+    // Starts the helper in the background, detached from the root session that starts it
+    private static String getStartCommand(Context context) {
+        return "(CLASSPATH=" + context.getPackageCodePath()
+                + " app_process /system/bin " + RootHelper.class.getName()
+                + " " + Integer.toString(context.getApplicationInfo().uid)
+                + " </dev/null >/dev/null 2>&1 &)";
+    }
+
+    // Any app can listen on an abstract socket name, so only a root process is taken to be the
+    // helper.  Anything else (which would also have kept the real helper from starting) is
+    // treated the same as no helper at all.
+    private static LocalSocket tryConnect() {
+        LocalSocket socket = new LocalSocket();
+        try {
+            socket.connect(new LocalSocketAddress(HelperProtocol.SOCKET_NAME));
+            if(socket.getPeerCredentials().getUid() == 0)
+                return socket;
+        } catch (IOException e) { /* not running */ }
+
+        close(socket);
+        return null;
+    }
+
+    private static void close(LocalSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) { /* ignore */ }
+    }
+}
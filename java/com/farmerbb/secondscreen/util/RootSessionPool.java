@@ -0,0 +1,453 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import eu.chainfire.libsuperuser.Shell;
+
+// Keeps a small pool of long-lived root shells, so that profile loads, quick actions, screen-on
+// and lock events don't have to pay for a new su process (and the su handshake) on every call.
+// Sessions are started lazily on first use, health-checked before being handed out again,
+// respawned if they have died, and closed once they have been idle for a while.
+// Commands are pipelined into the session, so a whole batch is written in one go, while each
+// command still reports its own exit code and output.
+public final class RootSessionPool {
+
+    // Maximum number of root shells kept open at the same time
+    static final int MAX_SESSIONS = 2;
+
+    // Close sessions that have not been used for this long (in milliseconds)
+    private static final long IDLE_TIMEOUT = 60000;
+
+    // Sessions idle for longer than this (in milliseconds) are pinged before being reused
+    private static final long HEALTH_CHECK_INTERVAL = 10000;
+
+    // How long to wait (in milliseconds) for a session to become available before
+    // falling back to a one-shot su process.  Kept short: a one-shot su costs about as much as
+    // this, and a busy session may well be in the middle of a multi-second profile load.
+    private static final long ACQUIRE_TIMEOUT = 500;
+
+    // Watchdog timeout for a single command block, in seconds
+    private static final int WATCHDOG_TIMEOUT = 30;
+
+    private static final Object lock = new Object();
+    private static final LinkedList<Session> idleSessions = new LinkedList<>();
+    private static int openSessions = 0;
+    private static Timer reaper;
+
+    private RootSessionPool() {}
+
+    // Wraps a Shell.Interactive together with the time it was last used
+    private static final class Session {
+        final Shell.Interactive shell;
+        long lastUsed;
+
+        Session(Shell.Interactive shell) {
+            this.shell = shell;
+            this.lastUsed = now();
+        }
+    }
+
+    // Results of a batch of commands, one entry per command that was actually run
+    public static final class Result {
+        public final String[] commands;
+        public final int[] exitCodes;
+        public final List<List<String>> outputs;
+
+        // Time taken to run the batch, including waiting for a session, in milliseconds
+        long elapsed;
+
+        Result(String[] commands) {
+            this.commands = commands;
+            this.exitCodes = new int[commands.length];
+            this.outputs = new ArrayList<>(commands.length);
+
+            Arrays.fill(exitCodes, Shell.OnCommandResultListener.SHELL_DIED);
+            for(String ignored : commands) {
+                outputs.add(null);
+            }
+        }
+
+        // Combined output of all commands, in order
+        public List<String> getOutput() {
+            List<String> output = new ArrayList<>();
+            for(List<String> lines : outputs) {
+                if(lines != null)
+                    output.addAll(lines);
+            }
+
+            return output;
+        }
+
+        public long getElapsedTime() {
+            return elapsed;
+        }
+
+        // Number of commands, from the start of the batch, that completed
+        int getCompleted() {
+            int completed = 0;
+            while(completed < exitCodes.length && exitCodes[completed] >= 0) {
+                completed++;
+            }
+
+            return completed;
+        }
+
+        // Fills in the commands from the given index on with the result of running them separately
+        void complete(int from, Result rest) {
+            for(int i = 0; i < rest.commands.length; i++) {
+                exitCodes[from + i] = rest.exitCodes[i];
+                outputs.set(from + i, rest.outputs.get(i));
+            }
+
+            elapsed += rest.elapsed;
+        }
+
+        // True if every command completed (whatever its exit code)
+        boolean isComplete() {
+            for(int exitCode : exitCodes) {
+                if(exitCode < 0)
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    // Runs commands as root on a pooled session.  Empty commands are skipped.
+    // Returns null if root isn't available or the session died while running the commands.
+    public static Result run(String[] commands) {
+        long start = now();
+
+        List<String> filtered = new ArrayList<>();
+        for(String command : commands) {
+            if(command != null && !command.equals(""))
+                filtered.add(command);
+        }
+
+        String[] batch = filtered.toArray(new String[filtered.size()]);
+        if(batch.length == 0)
+            return new Result(batch);
+
+        Session session;
+        try {
+            session = acquire();
+        } catch (RootUnavailableException e) {
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        // Every session is busy; don't hold the caller up, just use a one-shot su process instead
+        Result result;
+        if(session == null) {
+            result = runOneShot(batch);
+            if(result != null)
+                result.elapsed = now() - start;
+
+            return result;
+        }
+
+        result = runBatch(session, batch);
+        result.elapsed = now() - start;
+
+        if(!result.isComplete()) {
+            discard(session);
+            return null;
+        }
+
+        release(session);
+        return result;
+    }
+
+    // Closes all idle sessions immediately
+    public static void shutdown() {
+        List<Session> toClose;
+        synchronized(lock) {
+            toClose = new ArrayList<>(idleSessions);
+            idleSessions.clear();
+            openSessions -= toClose.size();
+
+            if(reaper != null) {
+                reaper.cancel();
+                reaper = null;
+            }
+        }
+
+        for(Session session : toClose) {
+            session.shell.close();
+        }
+    }
+
+    // Thrown by acquire() if a new root shell could not be started
+    private static final class RootUnavailableException extends Exception {}
+
+    // Returns a healthy session, or null if all sessions stayed busy for ACQUIRE_TIMEOUT
+    private static Session acquire() throws InterruptedException, RootUnavailableException {
+        long deadline = now() + ACQUIRE_TIMEOUT;
+
+        while(true) {
+            Session candidate = null;
+            boolean mayOpen = false;
+
+            synchronized(lock) {
+                while(idleSessions.isEmpty() && openSessions >= MAX_SESSIONS) {
+                    long remaining = deadline - now();
+                    if(remaining <= 0)
+                        return null;
+
+                    lock.wait(remaining);
+                }
+
+                if(!idleSessions.isEmpty())
+                    candidate = idleSessions.removeFirst();
+                else {
+                    openSessions++;
+                    mayOpen = true;
+                }
+            }
+
+            if(mayOpen) {
+                Session session = open();
+                if(session == null) {
+                    synchronized(lock) {
+                        openSessions--;
+                        lock.notifyAll();
+                    }
+
+                    throw new RootUnavailableException();
+                }
+
+                return session;
+            }
+
+            if(isHealthy(candidate))
+                return candidate;
+
+            // Session went bad while idle; drop it and try again
+            discard(candidate);
+        }
+    }
+
+    private static void release(Session session) {
+        synchronized(lock) {
+            session.lastUsed = now();
+            idleSessions.addFirst(session);
+            lock.notifyAll();
+            scheduleReaper();
+        }
+    }
+
+    private static void discard(Session session) {
+        session.shell.kill();
+
+        synchronized(lock) {
+            openSessions--;
+            lock.notifyAll();
+        }
+    }
+
+    // Starts a new root shell, and waits for it to report that it is actually running as root
+    private static Session open() {
+        final CountDownLatch opened = new CountDownLatch(1);
+        final int[] status = {Shell.OnCommandResultListener.SHELL_EXEC_FAILED};
+
+        Shell.Interactive shell = new Shell.Builder()
+                .useSU()
+                .setAutoHandler(false)
+                .setWantSTDERR(false)
+                .setPipelined(true)
+                // Read the output of all pooled sessions on one shared thread
+                // (from Android 5.0; two reader threads per session before that)
+                .setMultiplexed(true)
+                .setWatchdogTimeout(WATCHDOG_TIMEOUT)
+                .open(new Shell.OnCommandResultListener() {
+                    @Override
+                    public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                        status[0] = exitCode;
+                        opened.countDown();
+                    }
+                });
+
+        try {
+            // The open callback is not called if the shell dies before answering,
+            // so keep an eye on the process while waiting
+            while(!opened.await(1, TimeUnit.SECONDS)) {
+                if(!shell.isRunning())
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(status[0] != Shell.OnCommandResultListener.SHELL_RUNNING) {
+            shell.kill();
+            return null;
+        }
+
+        return new Session(shell);
+    }
+
+    // A session is healthy if its process is still alive, and (if it has been sitting around
+    // for a while) it still answers a trivial command
+    private static boolean isHealthy(Session session) {
+        if(!session.shell.isRunning())
+            return false;
+
+        if(now() - session.lastUsed < HEALTH_CHECK_INTERVAL)
+            return true;
+
+        Result result = runBatch(session, new String[]{"echo -BOC-"});
+        return result.exitCodes[0] == 0
+                && result.outputs.get(0) != null
+                && result.outputs.get(0).contains("-BOC-");
+    }
+
+    private static Result runBatch(Session session, String[] commands) {
+        final Result result = new Result(commands);
+        final CountDownLatch latch = new CountDownLatch(commands.length);
+
+        Shell.OnCommandResultListener listener = new Shell.OnCommandResultListener() {
+            @Override
+            public void onCommandResult(int commandCode, int exitCode, List<String> output) {
+                // Callbacks arrive in order on the gobbler thread
+                result.exitCodes[commandCode] = exitCode;
+                result.outputs.set(commandCode, output);
+                latch.countDown();
+            }
+        };
+
+        // Queue the whole batch at once, so that it is written to the shell with a single flush
+        session.shell.addCommands(commands, listener);
+
+        try {
+            // Without a Handler, the watchdog does not call back on a timeout;
+            // it kills the process instead, which we notice here
+            while(!latch.await(1, TimeUnit.SECONDS)) {
+                if(!session.shell.isRunning())
+                    break;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        return result;
+    }
+
+    // Runs a batch through a one-shot su process.  Like the pipelined sessions, each command is
+    // followed by an echo of a marker and its exit code, which the combined output is split on.
+    // Returns null if su couldn't be run, or died before every command had finished.
+    private static Result runOneShot(String[] commands) {
+        String marker = UUID.randomUUID().toString();
+
+        String[] script = new String[commands.length * 2];
+        for(int i = 0; i < commands.length; i++) {
+            script[i * 2] = commands[i];
+            script[i * 2 + 1] = "echo " + marker + " $?";
+        }
+
+        List<String> output = Shell.SU.run(script);
+        if(output == null)
+            return null;
+
+        Result result = new Result(commands);
+        List<String> lines = new ArrayList<>();
+        int index = 0;
+
+        for(String line : output) {
+            if(index == commands.length)
+                break;
+
+            // The marker ends up on the same line as any output that lacks a trailing newline
+            int position = line.indexOf(marker);
+            if(position == -1) {
+                lines.add(line);
+                continue;
+            }
+
+            if(position > 0)
+                lines.add(line.substring(0, position));
+
+            try {
+                result.exitCodes[index] = Integer.parseInt(line.substring(position + marker.length()).trim());
+            } catch (NumberFormatException e) {
+                result.exitCodes[index] = 1;
+            }
+
+            result.outputs.set(index, lines);
+            lines = new ArrayList<>();
+            index++;
+        }
+
+        return result.isComplete() ? result : null;
+    }
+
+    // Monotonic clock in milliseconds.  Like SystemClock.elapsedRealtime(), but without depending
+    // on the Android framework, so the pool can also be driven from a plain JVM (see tools/fakesu).
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+
+    // must always be called while holding the lock
+    private static void scheduleReaper() {
+        if(reaper != null)
+            return;
+
+        reaper = new Timer("RootSessionPool", true);
+        reaper.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                reapIdleSessions();
+            }
+        }, IDLE_TIMEOUT, IDLE_TIMEOUT);
+    }
+
+    private static void reapIdleSessions() {
+        List<Session> toClose = new ArrayList<>();
+        long now = now();
+
+        synchronized(lock) {
+            for(Session session : new ArrayList<>(idleSessions)) {
+                if(now - session.lastUsed >= IDLE_TIMEOUT) {
+                    idleSessions.remove(session);
+                    openSessions--;
+                    toClose.add(session);
+                }
+            }
+
+            if(openSessions == 0 && reaper != null) {
+                reaper.cancel();
+                reaper = null;
+            }
+
+            lock.notifyAll();
+        }
+
+        for(Session session : toClose) {
+            session.shell.close();
+        }
+    }
+}
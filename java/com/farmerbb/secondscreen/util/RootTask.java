@@ -0,0 +1,201 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.Context;
+
+import com.farmerbb.secondscreen.helper.HelperProtocol;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Completion handle for a batch of root commands submitted with U.runCommandsAsync().
+// The batch runs on a small background pool, so the caller can get on with non-root work
+// (Settings, WifiManager, BluetoothAdapter, etc.) in the meantime.  Results can either be
+// waited for with await() / get(), or delivered to callbacks on an Executor of the caller's
+// choosing, so no Looper is needed.  The result is null if the commands could not be run as root.
+public final class RootTask extends FutureTask<RootSessionPool.Result> {
+
+    // Called once the batch has finished; result is null if root wasn't available,
+    // the shell died, or the task was cancelled
+    public interface Callback {
+        void onComplete(RootSessionPool.Result result);
+    }
+
+    // Runs callbacks on whichever thread completed the task (or registered the callback,
+    // if the task had already completed by then)
+    public static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static ThreadPoolExecutor executor;
+
+    private final List<Callback> callbacks = new ArrayList<>();
+    private final List<Executor> callbackExecutors = new ArrayList<>();
+    private boolean finished = false;
+
+    private RootTask(Callable<RootSessionPool.Result> callable) {
+        super(callable);
+    }
+
+    // Starts running the commands on the background pool
+    static RootTask submit(Context context, final String[] commands) {
+        final Context appContext = context.getApplicationContext();
+        RootTask task = new RootTask(new Callable<RootSessionPool.Result>() {
+            @Override
+            public RootSessionPool.Result call() throws Exception {
+                RootSessionPool.Result result = run(appContext, commands);
+                if(result == null)
+                    RootCapabilities.invalidate();
+
+                return result;
+            }
+        });
+
+        getExecutor().execute(task);
+        return task;
+    }
+
+    // Runs the commands on the resident root helper if it is turned on (see RootHelperClient),
+    // and on a pooled root session otherwise.  If the helper goes away part way through, the
+    // commands it hadn't got to are run on a pooled session.  The one it was on may have run
+    // (or, after a timeout, may still be running), so it is only run again if doing so is
+    // harmless; otherwise it is left without an exit code, and the result is incomplete.
+    // Returns null if they could not be run as root.
+    static RootSessionPool.Result run(Context context, String[] commands) {
+        RootSessionPool.Result result = RootHelperClient.run(context, commands);
+        if(result == null)
+            return RootSessionPool.run(commands);
+
+        if(result.isComplete())
+            return result;
+
+        int from = result.getCompleted();
+        if(!HelperProtocol.isIdempotent(result.commands[from]))
+            from++;
+
+        if(from == result.commands.length)
+            return result;
+
+        RootSessionPool.Result rest = RootSessionPool.run(Arrays.copyOfRange(result.commands, from, result.commands.length));
+        if(rest == null)
+            return null;
+
+        result.complete(from, rest);
+        return result;
+    }
+
+    // Returns a task that has already completed with the given result
+    static RootTask completed(final RootSessionPool.Result result) {
+        RootTask task = new RootTask(new Callable<RootSessionPool.Result>() {
+            @Override
+            public RootSessionPool.Result call() throws Exception {
+                return result;
+            }
+        });
+
+        task.run();
+        return task;
+    }
+
+    // Registers a callback, to be run on the given executor once the task has completed.
+    // If it has already completed, the callback is dispatched right away.
+    public RootTask addCallback(Callback callback, Executor callbackExecutor) {
+        synchronized(callbacks) {
+            if(!finished) {
+                callbacks.add(callback);
+                callbackExecutors.add(callbackExecutor);
+                return this;
+            }
+        }
+
+        dispatch(callback, callbackExecutor);
+        return this;
+    }
+
+    // Blocks until the commands have finished, and returns their result (or null on failure)
+    public RootSessionPool.Result await() {
+        try {
+            return get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        } catch (CancellationException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected void done() {
+        List<Callback> toRun;
+        List<Executor> toRunOn;
+
+        synchronized(callbacks) {
+            finished = true;
+            toRun = new ArrayList<>(callbacks);
+            toRunOn = new ArrayList<>(callbackExecutors);
+            callbacks.clear();
+            callbackExecutors.clear();
+        }
+
+        for(int i = 0; i < toRun.size(); i++) {
+            dispatch(toRun.get(i), toRunOn.get(i));
+        }
+    }
+
+    private void dispatch(final Callback callback, Executor callbackExecutor) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onComplete(isCancelled() ? null : await());
+            }
+        });
+    }
+
+    // One worker per pooled root session; idle workers exit after a while
+    private static synchronized ThreadPoolExecutor getExecutor() {
+        if(executor == null) {
+            executor = new ThreadPoolExecutor(RootSessionPool.MAX_SESSIONS, RootSessionPool.MAX_SESSIONS,
+                    30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RootTask");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        return executor;
+    }
+}
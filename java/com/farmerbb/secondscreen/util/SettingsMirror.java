@@ -0,0 +1,143 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.provider.Settings;
+
+import java.util.EnumMap;
+
+// Process-wide, in-memory copy of the system settings read on hot paths (locking the device,
+// loading profiles), so that these reads don't each need an IPC to the settings provider.
+// A setting is read from the provider the first time it is asked for; from then on, a
+// ContentObserver drops the cached value whenever the setting changes, and it is read again
+// on the next request.  Observers stay registered for the lifetime of the process.
+//
+// Changes reach the mirror asynchronously, so a value can briefly be stale; it is only meant for
+// reads that decide what to do, not for skipping a write because the value "already" matches.
+public final class SettingsMirror {
+
+    public enum Key {
+        SCREENSAVER_ENABLED(false, "screensaver_enabled"),
+        SCREENSAVER_ACTIVATE_ON_DOCK(false, "screensaver_activate_on_dock"),
+        SCREENSAVER_ACTIVATE_ON_SLEEP(false, "screensaver_activate_on_sleep"),
+        LOCK_SCREEN_LOCK_AFTER_TIMEOUT(false, "lock_screen_lock_after_timeout");
+
+        // True for Settings.System, false for Settings.Secure
+        final boolean system;
+        final String name;
+
+        Key(boolean system, String name) {
+            this.system = system;
+            this.name = name;
+        }
+    }
+
+    // Cached values; a key that is present with a null value isn't set on this device
+    private static final EnumMap<Key, String> values = new EnumMap<>(Key.class);
+
+    // Bumped whenever a setting changes, so that a read racing with a change isn't cached
+    private static final EnumMap<Key, Integer> versions = new EnumMap<>(Key.class);
+
+    private static final EnumMap<Key, ContentObserver> observers = new EnumMap<>(Key.class);
+
+    private static long hits = 0;
+    private static long misses = 0;
+
+    private SettingsMirror() {}
+
+    public static int getInt(Context context, Key key, int defaultValue) {
+        String value = getString(context, key);
+        if(value == null)
+            return defaultValue;
+
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
+    public static String getString(Context context, Key key) {
+        int version;
+        synchronized(SettingsMirror.class) {
+            if(values.containsKey(key)) {
+                hits++;
+                return values.get(key);
+            }
+
+            misses++;
+            version = getVersion(key);
+        }
+
+        ContentResolver resolver = context.getApplicationContext().getContentResolver();
+        observe(resolver, key);
+
+        String value = key.system
+                ? Settings.System.getString(resolver, key.name)
+                : Settings.Secure.getString(resolver, key.name);
+
+        synchronized(SettingsMirror.class) {
+            if(getVersion(key) == version)
+                values.put(key, value);
+        }
+
+        return value;
+    }
+
+    // Number of reads answered from memory, i.e. provider queries saved
+    public static synchronized long getSavedQueries() {
+        return hits;
+    }
+
+    // Number of reads that had to query the settings provider
+    public static synchronized long getQueries() {
+        return misses;
+    }
+
+    private static void observe(ContentResolver resolver, final Key key) {
+        ContentObserver observer;
+        synchronized(SettingsMirror.class) {
+            if(observers.containsKey(key))
+                return;
+
+            // Without a Handler, changes are delivered straight away on a binder thread
+            observer = new ContentObserver(null) {
+                @Override
+                public void onChange(boolean selfChange) {
+                    synchronized(SettingsMirror.class) {
+                        values.remove(key);
+                        versions.put(key, getVersion(key) + 1);
+                    }
+                }
+            };
+
+            observers.put(key, observer);
+        }
+
+        Uri uri = key.system ? Settings.System.getUriFor(key.name) : Settings.Secure.getUriFor(key.name);
+        resolver.registerContentObserver(uri, false, observer);
+    }
+
+    // must always be called while holding the lock
+    private static int getVersion(Key key) {
+        Integer version = versions.get(key);
+        return version == null ? 0 : version;
+    }
+}
@@ -0,0 +1,79 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.util;
+
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Collects every preference change made during one state transition (loading a profile, turning it
+// off, re-applying it on boot), so that each file is rewritten once instead of once per step.
+// There is a single editor per file; changes are staged on it, and written out together by either:
+// * flush(), which publishes them in memory right away and writes them to disk in the background,
+//   so that running the superuser commands doesn't have to wait for the disk
+// * barrier(), which blocks until they are on disk.  Only needed if the process might not survive
+//   long enough for a background write to finish (see Plan.needsDurableState()).
+// Background writes are still waited for by Android before a service is considered stopped.
+public final class StateStore {
+
+    private final List<SharedPreferences> files = new ArrayList<>();
+    private final List<SharedPreferences.Editor> editors = new ArrayList<>();
+
+    // Returns the editor for the given file, so that all changes to it end up in the same write
+    public SharedPreferences.Editor edit(SharedPreferences pref) {
+        int index = files.indexOf(pref);
+        if(index != -1)
+            return editors.get(index);
+
+        SharedPreferences.Editor editor = pref.edit();
+        files.add(pref);
+        editors.add(editor);
+        return editor;
+    }
+
+    // Writes all staged changes in the background.  They are visible to readers immediately.
+    public void flush() {
+        for(SharedPreferences.Editor editor : editors) {
+            editor.apply();
+        }
+
+        clear();
+    }
+
+    // Writes all staged changes, and returns once they are on disk
+    public void barrier() {
+        for(SharedPreferences.Editor editor : editors) {
+            editor.commit();
+        }
+
+        clear();
+    }
+
+    // Writes all staged changes, waiting for the disk only if the state has to be durable
+    public void flush(boolean durable) {
+        if(durable)
+            barrier();
+        else
+            flush();
+    }
+
+    private void clear() {
+        files.clear();
+        editors.clear();
+    }
+}
@@ -0,0 +1,84 @@
+/* Copyright 2015 Braden Farmer
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.farmerbb.secondscreen.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Backlight and vibration sysfs nodes.  Which node (if any) works on this device is probed once,
+// on first use, instead of on every call, and current values are read straight from the node.
+// Values are written with a plain "echo", which the resident RootHelper recognises and writes
+// through a file descriptor it keeps open; on a pooled root session, echo is a shell builtin,
+// so no process is started either way.
+public final class SysfsWriter {
+
+    // Probe results, keyed by candidate array (U.backlightOff, U.vibrationOff).
+    // A null value means none of the candidates exist on this device.
+    private static final Map<File[], File> nodes = new IdentityHashMap<>();
+
+    private SysfsWriter() {}
+
+    public static File getBacklight() {
+        return find(U.backlightOff);
+    }
+
+    public static File getVibration() {
+        return find(U.vibrationOff);
+    }
+
+    // Returns the first of the given nodes that exists on this device, or null if none do
+    static File find(File[] candidates) {
+        synchronized(nodes) {
+            if(nodes.containsKey(candidates))
+                return nodes.get(candidates);
+
+            File node = null;
+            for(File file : candidates) {
+                if(file.exists()) {
+                    node = file;
+                    break;
+                }
+            }
+
+            nodes.put(candidates, node);
+            return node;
+        }
+    }
+
+    // Returns the current value of a node, or null if it can't be read
+    public static String read(File node) {
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(node));
+            try {
+                return reader.readLine();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Command that writes a value to a node (see HelperProtocol for how the helper handles it)
+    public static String writeCommand(File node, int value) {
+        return "echo " + Integer.toString(value) + " > " + node.getAbsolutePath();
+    }
+}
@@ -38,6 +38,7 @@ import android.widget.Toast;
 import com.farmerbb.secondscreen.R;
 import com.farmerbb.secondscreen.activity.MainActivity;
 import com.farmerbb.secondscreen.activity.TaskerQuickActionsActivity;
+import com.farmerbb.secondscreen.profile.ProfileStateMachine;
 import com.farmerbb.secondscreen.service.ProfileLoadService;
 import com.farmerbb.secondscreen.service.TurnOffService;
 import com.jrummyapps.android.os.SystemProperties;
@@ -53,8 +54,6 @@ import java.util.List;
 import java.util.Random;
 import java.util.Scanner;
 
-import eu.chainfire.libsuperuser.Shell;
-
 // Utility class to store common methods and objects shared between multiple classes
 public final class U {
 
@@ -79,6 +78,9 @@ public final class U {
     public static final String KEY = "com.farmerbb.secondscreen.KEY";
     public static final String VALUE = "com.farmerbb.secondscreen.VALUE";
 
+    // Extra for ProfileLoadService and TurnOffService (see ProfileStateMachine)
+    public static final String VERSION = "com.farmerbb.secondscreen.VERSION";
+
     // Arrays of sysfs files that turn the backlight or vibration off.
     // Add new files to the end of the respective array to add backlight/vibration off support to a device
 
@@ -93,16 +95,9 @@ public final class U {
             new File("/sys/class/timed_output/vibrator", "amp"),
             new File("/sys/drv2605", "rtp_strength")};
 
-    // Tests if backlight/vibration off files exist
+    // Tests if backlight/vibration off files exist (probed once, see SysfsWriter)
     public static boolean filesExist(File[] array) {
-        boolean exists = false;
-
-        for(File file : array) {
-            if(file.exists())
-                exists = true;
-        }
-
-        return exists;
+        return SysfsWriter.find(array) != null;
     }
 
     // Superuser commands
@@ -219,14 +214,17 @@ public final class U {
                         processid = process.pid;
                 }
 
-                return "sleep 1 && kill " + Integer.toString(processid);
+                return "kill " + Integer.toString(processid);
             } else
-                return "sleep 1 && am restart";
+                return "am restart";
         } else {
-            // Use "pkill" on Android M to kill SystemUI, and the standard "kill" command on earlier versions
+            // Use "pkill" on Android M to kill SystemUI, and the standard "kill" command on earlier versions.
+            // The old pid is kept in $ss_systemui, and SystemUI is waited for in the same command, as
+            // the variable is lost if the next command runs in a different shell.
             if(Build.VERSION.SDK_INT > Build.VERSION_CODES.LOLLIPOP_MR1
                     || "MNC".equals(Build.VERSION.CODENAME))
-                return "sleep 2 && pkill com.android.systemui";
+                return "ss_systemui=$(pidof com.android.systemui); pkill com.android.systemui; "
+                        + ReadinessProbe.waitForSystemUi(context);
             else {
                 // Get SystemUI pid
                 for(ActivityManager.RunningAppProcessInfo process : pids) {
@@ -234,7 +232,8 @@ public final class U {
                         processid = process.pid;
                 }
 
-                return "sleep 2 && kill " + Integer.toString(processid);
+                return "ss_systemui=" + Integer.toString(processid) + "; kill " + Integer.toString(processid) + "; "
+                        + ReadinessProbe.waitForSystemUi(context);
             }
         }
     }
@@ -260,7 +259,8 @@ public final class U {
         // Get launcher package name
         final ResolveInfo mInfo = pm.resolveActivity(homeIntent, 0);
 
-        return "sleep 1 && am force-stop " + mInfo.activityInfo.applicationInfo.packageName;
+        // SystemUI has already been waited for, at the end of uiRefreshCommand()
+        return "am force-stop " + mInfo.activityInfo.applicationInfo.packageName;
     }
 
     // Runs checks to determine if size or density commands need to be run.
@@ -511,40 +511,56 @@ public final class U {
 
     // Miscellaneous utility methods
 
-    // Checks if superuser access is available.
+    // Checks if superuser access is available, using the cached result from RootCapabilities.
     // If debug mode is enabled, the app acts as if superuser access is always available,
     // even on non-rooted devices.
     public static boolean hasRoot(Context context) {
-        return Shell.SU.available() || getPrefMain(context).getBoolean("debug_mode", false);
+        return getPrefMain(context).getBoolean("debug_mode", false) || RootCapabilities.get(context).rootAvailable;
     }
 
-    // Executes multiple superuser commands.
+    // Executes multiple superuser commands, using the resident root helper (if turned on)
+    // or a pooled root shell where possible.
     // If debug mode is enabled, the command is not actually run; instead, this will show a
     // notification containing the command that would have been run instead.
     public static void runCommands(Context context, String[] commands) {
+        if(getPrefMain(context).getBoolean("debug_mode", false))
+            showDebugCommands(context, commands);
+        else if(RootTask.run(context, commands) == null)
+            RootCapabilities.invalidate();
+    }
+
+    // Same as runCommands(), but returns immediately; the commands are run in the background.
+    // The returned RootTask can be waited on, or given callbacks to run once the commands finish.
+    public static RootTask runCommandsAsync(Context context, String[] commands) {
         if(getPrefMain(context).getBoolean("debug_mode", false)) {
-            String dump = "";
+            showDebugCommands(context, commands);
+            return RootTask.completed(null);
+        } else
+            return RootTask.submit(context, commands);
+    }
 
-            for(String command : commands) {
-                if(!command.equals(""))
-                    dump = dump + context.getResources().getString(R.string.bullet) + " " + command + "\n";
-            }
+    // Shows a notification (and prints to the log) listing the commands that would have been run
+    private static void showDebugCommands(Context context, String[] commands) {
+        String dump = "";
 
-            Notification notification = new Notification.Builder(context)
-                    .setSmallIcon(R.drawable.ic_action_settings)
-                    .setContentTitle(context.getResources().getString(R.string.debug_mode_enabled))
-                    .setContentText(dump)
-                    .setStyle(new Notification.BigTextStyle().bigText(dump))
-                    .build();
+        for(String command : commands) {
+            if(!command.equals(""))
+                dump = dump + context.getResources().getString(R.string.bullet) + " " + command + "\n";
+        }
 
-            NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
-            nm.notify(new Random().nextInt(), notification);
+        Notification notification = new Notification.Builder(context)
+                .setSmallIcon(R.drawable.ic_action_settings)
+                .setContentTitle(context.getResources().getString(R.string.debug_mode_enabled))
+                .setContentText(dump)
+                .setStyle(new Notification.BigTextStyle().bigText(dump))
+                .build();
 
-            // Some devices (Android TV) don't show notifications, so let's also print the commands
-            // to the log just in case.
-            System.out.println(dump);
-        } else
-            Shell.SU.run(commands);
+        NotificationManager nm = (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+        nm.notify(new Random().nextInt(), notification);
+
+        // Some devices (Android TV) don't show notifications, so let's also print the commands
+        // to the log just in case.
+        System.out.println(dump);
     }
 
     // Executes a single superuser command.  Same debug mode behavior applies.
@@ -552,32 +568,32 @@ public final class U {
         runCommands(context, new String[]{command});
     }
 
+    // Executes a single superuser command in the background.  Same debug mode behavior applies.
+    public static RootTask runCommandAsync(Context context, String command) {
+        return runCommandsAsync(context, new String[]{command});
+    }
+
     // Loads a profile with the given filename
     public static void loadProfile(Context context, String filename) {
-        // Set filename in current.xml
-        SharedPreferences prefCurrent = getPrefCurrent(context);
-        SharedPreferences.Editor editor = prefCurrent.edit();
-        editor.putString("filename", filename);
-        editor.apply();
+        // Set filename in current.xml, and queue up the request
+        int version = ProfileStateMachine.requestLoad(context, filename);
 
         // Start ProfileLoadService
         Intent intent = new Intent(context, ProfileLoadService.class);
         // Get filename of selected profile
         intent.putExtra(NAME, filename);
+        intent.putExtra(VERSION, version);
         context.startService(intent);
     }
 
     // Turns off the currently active profile
     public static void turnOffProfile(Context context) {
-        // Set filename in current.xml
-        SharedPreferences prefCurrent = getPrefCurrent(context);
-        SharedPreferences.Editor editor = prefCurrent.edit();
-        editor.putString("filename_backup", prefCurrent.getString("filename", "0"));
-        editor.putString("filename", "0");
-        editor.apply();
+        // Set filename in current.xml, and queue up the request
+        int version = ProfileStateMachine.requestTurnOff(context);
 
         // Start TurnOffService
         Intent intent = new Intent(context, TurnOffService.class);
+        intent.putExtra(VERSION, version);
         context.startService(intent);
     }
 
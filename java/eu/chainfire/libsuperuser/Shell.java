@@ -29,8 +29,6 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 import android.os.Handler;
 import android.os.Looper;
@@ -111,7 +109,11 @@ public class Shell {
         }
         Debug.logCommand(String.format("[%s%%] START", shellUpper));
 
-        List<String> res = Collections.synchronizedList(new ArrayList<String>());
+        // the list is only shared between the two gobblers if STDERR is
+        // wanted, and otherwise only read after they have been joined
+        List<String> res = wantSTDERR
+                ? Collections.synchronizedList(new ArrayList<String>())
+                : new ArrayList<String>();
 
         try {
             // Combine passed environment with system environment
@@ -144,8 +146,11 @@ public class Shell {
             // start gobbling and write our commands to the shell
             STDOUT.start();
             STDERR.start();
+            boolean logCommands = Debug.getLogTypeEnabledEffective(Debug.LOG_COMMAND);
             for (String write : commands) {
-                Debug.logCommand(String.format("[%s+] %s", shellUpper, write));
+                if (logCommands) {
+                    Debug.logCommand(String.format("[%s+] %s", shellUpper, write));
+                }
                 STDIN.write((write + "\n").getBytes("UTF-8"));
                 STDIN.flush();
             }
@@ -275,6 +280,37 @@ public class Shell {
         private static String[] suVersion = new String[] {
                 null, null
         };
+        private static volatile String binary = System.getProperty(
+                "eu.chainfire.libsuperuser.su", "su");
+
+        /**
+         * <p>
+         * Set the su binary used by every function in this class, as well as by
+         * {@link Shell.Builder#useSU()}
+         * </p>
+         * <p>
+         * This is meant to substitute a stand-in for testing and benchmarking
+         * (for example, a script that emulates su and the commands run through
+         * it, on a device or machine without root). The binary's file name
+         * should still be "su", so {@link #isSU(String)} recognizes it. The
+         * default can also be set through the "eu.chainfire.libsuperuser.su"
+         * system property. Cached results are cleared.
+         * </p>
+         * 
+         * @param binary Path to the su binary to use, or "su" for the default
+         */
+        public static void setBinary(String binary) {
+            SU.binary = binary;
+            clearCachedResults();
+        }
+
+        /**
+         * @return The su binary in use, "su" unless changed with
+         *         {@link #setBinary(String)}
+         */
+        public static String getBinary() {
+            return binary;
+        }
 
         /**
          * Runs command as root (if available) and return output
@@ -284,7 +320,7 @@ public class Shell {
          *         case of an error
          */
         public static List<String> run(String command) {
-            return Shell.run("su", new String[] {
+            return Shell.run(binary, new String[] {
                     command
             }, null, false);
         }
@@ -297,7 +333,8 @@ public class Shell {
          *         case of an error
          */
         public static List<String> run(List<String> commands) {
-            return Shell.run("su", commands.toArray(new String[commands.size()]), null, false);
+            return Shell.run(binary, commands.toArray(new String[commands.size()]), null,
+                    false);
         }
 
         /**
@@ -308,7 +345,7 @@ public class Shell {
          *         case of an error
          */
         public static List<String> run(String[] commands) {
-            return Shell.run("su", commands, null, false);
+            return Shell.run(binary, commands, null, false);
         }
 
         /**
@@ -352,7 +389,7 @@ public class Shell {
                 String version = null;
 
                 List<String> ret = Shell.run(
-                        internal ? "su -V" : "su -v",
+                        binary + (internal ? " -V" : " -v"),
                         new String[] {},
                         null,
                         false
@@ -415,7 +452,7 @@ public class Shell {
          */
         public static String shell(int uid, String context) {
             // su[ --context <context>][ <uid>]
-            String shell = "su";
+            String shell = binary;
 
             if ((context != null) && isSELinuxEnforcing()) {
                 String display = version(false);
@@ -448,9 +485,9 @@ public class Shell {
          */
         public static String shellMountMaster() {
             if (android.os.Build.VERSION.SDK_INT >= 17) {
-                return "su --mount-master";
+                return binary + " --mount-master";
             }
-            return "su";
+            return binary;
         }
 
         /**
@@ -592,6 +629,12 @@ public class Shell {
         private final OnCommandLineListener onCommandLineListener;
         private final String marker;
 
+        // per-command state, only used in pipelined mode
+        private List<String> buffer = null;
+        private int exitCode = 0;
+        private boolean markerSTDOUT = false;
+        private boolean markerSTDERR = false;
+
         public Command(String[] commands, int code,
                 OnCommandResultListener onCommandResultListener,
                 OnCommandLineListener onCommandLineListener) {
@@ -616,6 +659,8 @@ public class Shell {
         private OnLineListener onSTDOUTLineListener = null;
         private OnLineListener onSTDERRLineListener = null;
         private int watchdogTimeout = 0;
+        private boolean pipelined = false;
+        private boolean multiplexed = false;
 
         /**
          * <p>
@@ -673,12 +718,13 @@ public class Shell {
         }
 
         /**
-         * Convenience function to set "su" as used shell
+         * Convenience function to set "su" (or the binary configured with
+         * {@link SU#setBinary(String)}) as used shell
          * 
          * @return This Builder object for method chaining
          */
         public Builder useSU() {
-            return setShell("su");
+            return setShell(SU.getBinary());
         }
 
         /**
@@ -867,6 +913,55 @@ public class Shell {
             return this;
         }
 
+        /**
+         * <p>
+         * Enable pipelined command submission
+         * </p>
+         * <p>
+         * By default, a command block is only written to the shell after the
+         * previous block has completed. In pipelined mode, all queued command
+         * blocks are written back-to-back, each followed by its own end
+         * marker. Output and exit codes are still delivered per block, in
+         * submission order, but there is no round-trip between blocks.
+         * </p>
+         * <p>
+         * Do not use this mode if any of the commands read from STDIN, as they
+         * would consume the command blocks that follow them.
+         * </p>
+         * 
+         * @param pipelined Write queued commands without waiting for results ?
+         * @return This Builder object for method chaining
+         */
+        public Builder setPipelined(boolean pipelined) {
+            this.pipelined = pipelined;
+            return this;
+        }
+
+        /**
+         * <p>
+         * Read output on the shared {@link StreamMultiplexer} thread
+         * </p>
+         * <p>
+         * By default, STDOUT and STDERR are each read by a StreamGobbler
+         * thread of their own. With this enabled, they are read by the single
+         * multiplexer thread instead, which blocks in poll() while there is
+         * nothing to read. Where the multiplexer is not supported (see
+         * {@link StreamMultiplexer#isSupported()}), the StreamGobbler threads
+         * are used regardless.
+         * </p>
+         * <p>
+         * Line callbacks then run on the multiplexer thread, and block output
+         * processing for every other multiplexed shell while they run.
+         * </p>
+         *
+         * @param multiplexed Read output on the shared multiplexer thread ?
+         * @return This Builder object for method chaining
+         */
+        public Builder setMultiplexed(boolean multiplexed) {
+            this.multiplexed = multiplexed;
+            return this;
+        }
+
         /**
          * <p>
          * Enable/disable reduced logcat output
@@ -974,13 +1069,17 @@ public class Shell {
         private final Map<String, String> environment;
         private final OnLineListener onSTDOUTLineListener;
         private final OnLineListener onSTDERRLineListener;
+        private final boolean pipelined;
+        private final boolean multiplexed;
         private int watchdogTimeout;
 
         private Process process = null;
         private DataOutputStream STDIN = null;
         private StreamGobbler STDOUT = null;
         private StreamGobbler STDERR = null;
-        private ScheduledThreadPoolExecutor watchdog = null;
+        private StreamMultiplexer.Stream muxSTDOUT = null;
+        private StreamMultiplexer.Stream muxSTDERR = null;
+        private Watchdog.Entry watchdog = null;
 
         private volatile boolean running = false;
         private volatile boolean idle = true; // read/write only synchronized
@@ -996,6 +1095,7 @@ public class Shell {
         private volatile String lastMarkerSTDERR = null;
         private volatile Command command = null;
         private volatile List<String> buffer = null;
+        private final List<Command> pipeline = new LinkedList<Command>();
 
         /**
          * The only way to create an instance: Shell.Builder::open()
@@ -1011,13 +1111,17 @@ public class Shell {
             environment = builder.environment;
             onSTDOUTLineListener = builder.onSTDOUTLineListener;
             onSTDERRLineListener = builder.onSTDERRLineListener;
+            pipelined = builder.pipelined;
+            multiplexed = builder.multiplexed;
             watchdogTimeout = builder.watchdogTimeout;
 
             // If a looper is available, we offload the callbacks from the
             // gobbling threads
             // to whichever thread created us. Would normally do this in open(),
             // but then we could not declare handler as final
-            if ((Looper.myLooper() != null) && (builder.handler == null) && autoHandler) {
+            // checking the Looper last means it isn't touched at all when no
+            // handler is wanted, so handler-less shells also work on a plain JVM
+            if (autoHandler && (builder.handler == null) && (Looper.myLooper() != null)) {
                 handler = new Handler();
             } else {
                 handler = builder.handler;
@@ -1209,6 +1313,36 @@ public class Shell {
             runNextCommand();
         }
 
+        /**
+         * <p>
+         * Add several commands to execute, each as a separate command with its
+         * own callback. The code passed back to the callback is the index of
+         * the command in the array.
+         * </p>
+         * <p>
+         * All commands are queued before any of them is started, so in
+         * pipelined mode (see {@link Builder#setPipelined(boolean)}) they are
+         * written to the shell together, with a single flush
+         * </p>
+         * <p>
+         * The thread on which the callback executes is dependent on various
+         * factors, see {@link Shell.Interactive} for further details
+         * </p>
+         *
+         * @param commands Commands to execute
+         * @param onCommandResultListener Callback to be called on completion
+         *            of each command
+         */
+        public synchronized void addCommands(String[] commands,
+                OnCommandResultListener onCommandResultListener) {
+            for (int i = 0; i < commands.length; i++) {
+                this.commands.add(new Command(new String[] {
+                        commands[i]
+                }, i, onCommandResultListener, null));
+            }
+            runNextCommand();
+        }
+
         /**
          * Run the next command if any and if ready, signals idle state if no
          * commands left
@@ -1218,37 +1352,53 @@ public class Shell {
         }
 
         /**
-         * Called from a ScheduledThreadPoolExecutor timer thread every second
-         * when there is an outstanding command
+         * Called from the shared {@link Watchdog} thread every second when
+         * there is an outstanding command
+         *
+         * @param entry Watchdog registration the tick was delivered for
          */
-        private synchronized void handleWatchdog() {
+        private synchronized void handleWatchdog(Watchdog.Entry entry) {
             final int exitCode;
 
-            if (watchdog == null)
+            // ignore late ticks for a registration that has since been replaced
+            if ((watchdog == null) || (watchdog != entry))
                 return;
             if (watchdogTimeout == 0)
                 return;
 
             if (!isRunning()) {
                 exitCode = OnCommandResultListener.SHELL_DIED;
-                Debug.log(String.format("[%s%%] SHELL_DIED", shell.toUpperCase(Locale.ENGLISH)));
+                Watchdog.onShellDied();
+                Debug.log(String.format("[%s%%] SHELL_DIED (%d of %d watched commands)",
+                        shell.toUpperCase(Locale.ENGLISH), Watchdog.getShellDiedCount(),
+                        Watchdog.getScheduledCount()));
             } else if (watchdogCount++ < watchdogTimeout) {
                 return;
             } else {
                 exitCode = OnCommandResultListener.WATCHDOG_EXIT;
-                Debug.log(String.format("[%s%%] WATCHDOG_EXIT", shell.toUpperCase(Locale.ENGLISH)));
+                Watchdog.onWatchdogExit();
+                Debug.log(String.format("[%s%%] WATCHDOG_EXIT (%d of %d watched commands)",
+                        shell.toUpperCase(Locale.ENGLISH), Watchdog.getWatchdogExitCount(),
+                        Watchdog.getScheduledCount()));
             }
 
             if (handler != null) {
-                postCallback(command, exitCode, buffer);
+                if (pipelined) {
+                    for (Command pending : pipeline) {
+                        postCallback(pending, exitCode, pending.buffer);
+                    }
+                } else {
+                    postCallback(command, exitCode, buffer);
+                }
             }
 
             // prevent multiple callbacks for the same command
             command = null;
             buffer = null;
+            pipeline.clear();
             idle = true;
 
-            watchdog.shutdown();
+            Watchdog.cancel(watchdog);
             watchdog = null;
             kill();
         }
@@ -1261,13 +1411,15 @@ public class Shell {
                 return;
             }
             watchdogCount = 0;
-            watchdog = new ScheduledThreadPoolExecutor(1);
-            watchdog.scheduleAtFixedRate(new Runnable() {
+            Watchdog.cancel(watchdog);
+            final Watchdog.Entry[] entry = new Watchdog.Entry[1];
+            entry[0] = Watchdog.schedule(new Runnable() {
                 @Override
                 public void run() {
-                    handleWatchdog();
+                    handleWatchdog(entry[0]);
                 }
-            }, 1, 1, TimeUnit.SECONDS);
+            });
+            watchdog = entry[0];
         }
 
         /**
@@ -1275,7 +1427,7 @@ public class Shell {
          */
         private void stopWatchdog() {
             if (watchdog != null) {
-                watchdog.shutdownNow();
+                Watchdog.cancel(watchdog);
                 watchdog = null;
             }
         }
@@ -1292,7 +1444,9 @@ public class Shell {
             if (!running)
                 idle = true;
 
-            if (running && idle && (commands.size() > 0)) {
+            if (running && pipelined) {
+                writePipelinedCommands();
+            } else if (running && idle && (commands.size() > 0)) {
                 Command command = commands.get(0);
                 commands.remove(0);
 
@@ -1308,15 +1462,22 @@ public class Shell {
                             // OnCommandResultListener
                             // user should catch the output with an
                             // OnLineListener in this case
-                            buffer = Collections.synchronizedList(new ArrayList<String>());
+                            // the buffer is only filled from more than one
+                            // thread by a gobbler pair that both keep output
+                            buffer = (muxSTDOUT == null) && wantSTDERR
+                                    ? Collections.synchronizedList(new ArrayList<String>())
+                                    : new ArrayList<String>();
                         }
 
                         idle = false;
                         this.command = command;
                         startWatchdog();
+                        boolean logCommands = Debug.getLogTypeEnabledEffective(Debug.LOG_COMMAND);
                         for (String write : command.commands) {
-                            Debug.logCommand(String.format("[%s+] %s",
-                                    shell.toUpperCase(Locale.ENGLISH), write));
+                            if (logCommands) {
+                                Debug.logCommand(String.format("[%s+] %s",
+                                        shell.toUpperCase(Locale.ENGLISH), write));
+                            }
                             STDIN.write((write + "\n").getBytes("UTF-8"));
                         }
                         STDIN.write(("echo " + command.marker + " $?\n").getBytes("UTF-8"));
@@ -1332,6 +1493,9 @@ public class Shell {
                 while (commands.size() > 0) {
                     postCallback(commands.remove(0), OnCommandResultListener.SHELL_DIED, null);
                 }
+                while (pipeline.size() > 0) {
+                    postCallback(pipeline.remove(0), OnCommandResultListener.SHELL_DIED, null);
+                }
             }
 
             if (idle && notifyIdle) {
@@ -1341,6 +1505,118 @@ public class Shell {
             }
         }
 
+        /**
+         * Write all queued commands to the shell without waiting for the
+         * previous ones to complete (pipelined mode only)
+         */
+        private void writePipelinedCommands() {
+            // must always be called from a synchronized method
+
+            if (commands.size() == 0)
+                return;
+
+            boolean logCommands = Debug.getLogTypeEnabledEffective(Debug.LOG_COMMAND);
+            try {
+                while (commands.size() > 0) {
+                    Command command = commands.remove(0);
+                    if (command.commands.length == 0)
+                        continue;
+
+                    if (command.onCommandResultListener != null) {
+                        // only ever accessed while synchronized on this shell
+                        command.buffer = new ArrayList<String>();
+                    }
+                    pipeline.add(command);
+
+                    for (String write : command.commands) {
+                        if (logCommands) {
+                            Debug.logCommand(String.format("[%s+] %s",
+                                    shell.toUpperCase(Locale.ENGLISH), write));
+                        }
+                        STDIN.write((write + "\n").getBytes("UTF-8"));
+                    }
+                    STDIN.write(("echo " + command.marker + " $?\n").getBytes("UTF-8"));
+                    STDIN.write(("echo " + command.marker + " >&2\n").getBytes("UTF-8"));
+                }
+                STDIN.flush();
+            } catch (IOException e) {
+            }
+
+            if ((pipeline.size() > 0) && idle) {
+                idle = false;
+                startWatchdog();
+            }
+        }
+
+        /**
+         * Process a STDOUT/STDERR line in pipelined mode. Output is attributed
+         * to the oldest command that has not yet printed its marker on the
+         * same stream, as the shell executes the commands in order.
+         * 
+         * @param line Line to process
+         * @param isSTDERR Line was read from STDERR ?
+         */
+        private synchronized void processPipelinedLine(String line, boolean isSTDERR) {
+            Command target = null;
+            for (Command pending : pipeline) {
+                if (isSTDERR ? !pending.markerSTDERR : !pending.markerSTDOUT) {
+                    target = pending;
+                    break;
+                }
+            }
+            if (target == null) {
+                return;
+            }
+
+            if (line.startsWith(target.marker)) {
+                if (isSTDERR) {
+                    target.markerSTDERR = true;
+                } else {
+                    try {
+                        target.exitCode = Integer.valueOf(
+                                line.substring(target.marker.length() + 1), 10);
+                    } catch (Exception e) {
+                    }
+                    target.markerSTDOUT = true;
+                }
+                processPipelinedMarkers();
+            } else {
+                if ((target.buffer != null) && (!isSTDERR || wantSTDERR))
+                    target.buffer.add(line);
+                if (isSTDERR) {
+                    processLine(line, onSTDERRLineListener);
+                } else {
+                    processLine(line, onSTDOUTLineListener);
+                    processLine(line, target.onCommandLineListener);
+                }
+            }
+        }
+
+        /**
+         * Deliver the results of all commands at the head of the pipeline that
+         * have seen both their STDOUT and STDERR markers
+         */
+        private synchronized void processPipelinedMarkers() {
+            while (pipeline.size() > 0) {
+                Command head = pipeline.get(0);
+                if (!(head.markerSTDOUT && head.markerSTDERR))
+                    break;
+
+                pipeline.remove(0);
+                postCallback(head, head.exitCode, head.buffer);
+                head.buffer = null;
+
+                // progress was made, restart the watchdog countdown
+                watchdogCount = 0;
+            }
+
+            if (pipeline.size() == 0) {
+                stopWatchdog();
+                idle = true;
+                runNextCommand();
+            }
+        }
+
         /**
          * Processes a STDOUT/STDERR line containing an end/exitCode marker
          */
@@ -1480,53 +1756,72 @@ public class Shell {
                 }
 
                 STDIN = new DataOutputStream(process.getOutputStream());
-                STDOUT = new StreamGobbler(shell.toUpperCase(Locale.ENGLISH) + "-",
-                        process.getInputStream(), new OnLineListener() {
-                            @Override
-                            public void onLine(String line) {
-                                synchronized (Interactive.this) {
-                                    if (command == null) {
-                                        return;
-                                    }
-                                    if (line.startsWith(command.marker)) {
-                                        try {
-                                            lastExitCode = Integer.valueOf(
-                                                    line.substring(command.marker.length() + 1), 10);
-                                        } catch (Exception e) {
-                                        }
-                                        lastMarkerSTDOUT = command.marker;
-                                        processMarker();
-                                    } else {
-                                        addBuffer(line);
-                                        processLine(line, onSTDOUTLineListener);
-                                        processLine(line, command.onCommandLineListener);
-                                    }
-                                }
+                OnLineListener onSTDOUTLine = new OnLineListener() {
+                    @Override
+                    public void onLine(String line) {
+                        synchronized (Interactive.this) {
+                            if (pipelined) {
+                                processPipelinedLine(line, false);
+                                return;
+                            }
+                            if (command == null) {
+                                return;
                             }
-                        });
-                STDERR = new StreamGobbler(shell.toUpperCase(Locale.ENGLISH) + "*",
-                        process.getErrorStream(), new OnLineListener() {
-                            @Override
-                            public void onLine(String line) {
-                                synchronized (Interactive.this) {
-                                    if (command == null) {
-                                        return;
-                                    }
-                                    if (line.startsWith(command.marker)) {
-                                        lastMarkerSTDERR = command.marker;
-                                        processMarker();
-                                    } else {
-                                        if (wantSTDERR)
-                                            addBuffer(line);
-                                        processLine(line, onSTDERRLineListener);
-                                    }
+                            if (line.startsWith(command.marker)) {
+                                try {
+                                    lastExitCode = Integer.valueOf(
+                                            line.substring(command.marker.length() + 1), 10);
+                                } catch (Exception e) {
                                 }
+                                lastMarkerSTDOUT = command.marker;
+                                processMarker();
+                            } else {
+                                addBuffer(line);
+                                processLine(line, onSTDOUTLineListener);
+                                processLine(line, command.onCommandLineListener);
+                            }
+                        }
+                    }
+                };
+                OnLineListener onSTDERRLine = new OnLineListener() {
+                    @Override
+                    public void onLine(String line) {
+                        synchronized (Interactive.this) {
+                            if (pipelined) {
+                                processPipelinedLine(line, true);
+                                return;
                             }
-                        });
+                            if (command == null) {
+                                return;
+                            }
+                            if (line.startsWith(command.marker)) {
+                                lastMarkerSTDERR = command.marker;
+                                processMarker();
+                            } else {
+                                if (wantSTDERR)
+                                    addBuffer(line);
+                                processLine(line, onSTDERRLineListener);
+                            }
+                        }
+                    }
+                };
 
                 // start gobbling and write our commands to the shell
-                STDOUT.start();
-                STDERR.start();
+                if (multiplexed && StreamMultiplexer.isSupported()
+                        && StreamMultiplexer.canRegister(process.getInputStream())
+                        && StreamMultiplexer.canRegister(process.getErrorStream())) {
+                    muxSTDOUT = StreamMultiplexer.register(shell.toUpperCase(Locale.ENGLISH) + "-",
+                            process.getInputStream(), onSTDOUTLine);
+                    muxSTDERR = StreamMultiplexer.register(shell.toUpperCase(Locale.ENGLISH) + "*",
+                            process.getErrorStream(), onSTDERRLine);
+                } else {
+                    STDOUT = new StreamGobbler(shell.toUpperCase(Locale.ENGLISH) + "-",
+                            process.getInputStream(), onSTDOUTLine);
+                    STDERR = new StreamGobbler(shell.toUpperCase(Locale.ENGLISH) + "*",
+                            process.getErrorStream(), onSTDERRLine);
+                    STDOUT.start();
+                    STDERR.start();
+                }
 
                 running = true;
                 closed = false;
@@ -1585,8 +1880,13 @@ public class Shell {
                     STDIN.close();
                 } catch (IOException e) {
                 }
-                STDOUT.join();
-                STDERR.join();
+                if (muxSTDOUT != null) {
+                    muxSTDOUT.join();
+                    muxSTDERR.join();
+                } else {
+                    STDOUT.join();
+                    STDERR.join();
+                }
                 stopWatchdog();
                 process.destroy();
             } catch (IOException e) {
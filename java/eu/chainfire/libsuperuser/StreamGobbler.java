@@ -86,8 +86,11 @@ public class StreamGobbler extends Thread {
         // keep reading the InputStream until it ends (or an error occurs)
         try {
             String line = null;
+            boolean logOutput = Debug.getLogTypeEnabledEffective(Debug.LOG_OUTPUT);
             while ((line = reader.readLine()) != null) {
-                Debug.logOutput(String.format("[%s] %s", shell, line));
+                if (logOutput) {
+                    Debug.logOutput(String.format("[%s] %s", shell, line));
+                }
                 if (writer != null) writer.add(line);
                 if (listener != null) listener.onLine(line);
             }
@@ -0,0 +1,425 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import eu.chainfire.libsuperuser.StreamGobbler.OnLineListener;
+
+/**
+ * <p>
+ * Alternative to {@link StreamGobbler}: a single thread that reads STDOUT and
+ * STDERR of any number of shell processes, instead of two threads per shell
+ * </p>
+ * <p>
+ * The thread blocks in poll() on the descriptors of all registered streams,
+ * so it only wakes up when there is output to read (or a stream to add), and
+ * uses one shared read buffer and pooled line buffers. Line callbacks are
+ * executed on the multiplexer thread, and thus block output processing for
+ * every other shell while they run - they should return as quickly as
+ * possible
+ * </p>
+ * <p>
+ * poll() is only available through android.system.Os, from Android 5.0 on.
+ * Shells opt in with {@link Shell.Builder#setMultiplexed(boolean)}, and fall
+ * back to StreamGobbler threads where {@link #isSupported()} is false.
+ * </p>
+ */
+public class StreamMultiplexer {
+    // ----- SUPPORT -----
+
+    private static final Object supportLock = new Object();
+    private static Boolean supported = null;
+    private static Poller poller = null;
+
+    /**
+     * <p>Can the multiplexer be used on this device ?</p>
+     * <p>
+     * False before Android 5.0, and on a plain JVM
+     * </p>
+     *
+     * @return Multiplexer supported
+     */
+    public static boolean isSupported() {
+        synchronized (supportLock) {
+            if (supported == null) {
+                try {
+                    Class.forName("android.system.Os");
+                    poller = new Poller();
+                    supported = true;
+                } catch (Throwable t) {
+                    supported = false;
+                }
+            }
+            return supported;
+        }
+    }
+
+    /**
+     * <p>Can the given stream be read by the multiplexer ?</p>
+     * <p>
+     * Only streams backed by a file descriptor can be polled
+     * </p>
+     *
+     * @param inputStream InputStream to check
+     * @return Stream can be registered
+     */
+    public static boolean canRegister(InputStream inputStream) {
+        return getFileDescriptor(inputStream) != null;
+    }
+
+    // Process streams are a FileInputStream, possibly wrapped in a
+    // BufferedInputStream (from Android 7.0 on)
+    private static FileDescriptor getFileDescriptor(InputStream inputStream) {
+        try {
+            while (inputStream instanceof FilterInputStream) {
+                Field in = FilterInputStream.class.getDeclaredField("in");
+                in.setAccessible(true);
+                inputStream = (InputStream) in.get(inputStream);
+            }
+            if (inputStream instanceof FileInputStream) {
+                FileDescriptor fd = ((FileInputStream) inputStream).getFD();
+                return fd.valid() ? fd : null;
+            }
+        } catch (Exception e) {
+            Debug.log("StreamMultiplexer: no descriptor for " + inputStream + ": " + e);
+        }
+        return null;
+    }
+
+    // ----- REGISTRATION -----
+
+    /**
+     * Handle for a stream serviced by the multiplexer
+     */
+    public static class Stream {
+        private final String shell;
+        private final InputStream inputStream;
+        private final FileDescriptor fd;
+        private final OnLineListener listener;
+
+        private byte[] line = null;
+        private int lineLength = 0;
+        private boolean skipLF = false;
+        private boolean closed = false;
+
+        private Stream(String shell, InputStream inputStream, FileDescriptor fd,
+                OnLineListener onLineListener) {
+            this.shell = shell;
+            this.inputStream = inputStream;
+            this.fd = fd;
+            this.listener = onLineListener;
+        }
+
+        /**
+         * Wait until the stream has been read to its end (or failed)
+         *
+         * @throws InterruptedException if interrupted while waiting
+         */
+        public void join() throws InterruptedException {
+            synchronized (this) {
+                while (!closed) {
+                    wait();
+                }
+            }
+        }
+
+        private void feed(byte[] buffer, int length) {
+            for (int i = 0; i < length; i++) {
+                byte b = buffer[i];
+                if (b == '\n') {
+                    if (skipLF) {
+                        skipLF = false;
+                    } else {
+                        emit();
+                    }
+                } else if (b == '\r') {
+                    emit();
+                    skipLF = true;
+                } else {
+                    skipLF = false;
+                    if (line == null) {
+                        line = obtainLineBuffer();
+                    } else if (lineLength == line.length) {
+                        byte[] grown = new byte[line.length * 2];
+                        System.arraycopy(line, 0, grown, 0, lineLength);
+                        line = grown;
+                    }
+                    line[lineLength++] = b;
+                }
+            }
+        }
+
+        private void emit() {
+            String text = (lineLength == 0) ? "" : new String(line, 0, lineLength, UTF8);
+            lineLength = 0;
+
+            if (Debug.getLogTypeEnabledEffective(Debug.LOG_OUTPUT)) {
+                Debug.logOutput("[" + shell + "] " + text);
+            }
+            if (listener != null) listener.onLine(text);
+        }
+
+        private void close() {
+            // a final line without a line terminator is still a line
+            if (lineLength > 0) {
+                emit();
+            }
+            if (line != null) {
+                recycleLineBuffer(line);
+                line = null;
+            }
+
+            try {
+                inputStream.close();
+            } catch (IOException e) {
+            }
+
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * <p>
+     * Start servicing a stream, passing each line read to a callback
+     * </p>
+     * <p>
+     * Only call this if {@link #isSupported()} and
+     * {@link #canRegister(InputStream)} are both true
+     * </p>
+     *
+     * @param shell Name of the shell, used for logging
+     * @param inputStream InputStream to read from
+     * @param onLineListener OnLineListener callback
+     * @return Stream handle, to be used with {@link Stream#join()}
+     */
+    public static Stream register(String shell, InputStream inputStream,
+            OnLineListener onLineListener) {
+        if (!isSupported()) {
+            throw new IllegalStateException("StreamMultiplexer not supported");
+        }
+        FileDescriptor fd = getFileDescriptor(inputStream);
+        if (fd == null) {
+            throw new IllegalArgumentException("stream has no file descriptor");
+        }
+
+        Stream stream = new Stream(shell, inputStream, fd, onLineListener);
+        synchronized (streams) {
+            streams.add(stream);
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                }, "StreamMultiplexer");
+                thread.setDaemon(true);
+                thread.start();
+            } else if (streams.size() == 1) {
+                streams.notifyAll();
+            } else if (!wakeupPending) {
+                // the thread is blocked in poll() without this stream
+                wakeupPending = true;
+                poller.wakeup();
+            }
+        }
+        return stream;
+    }
+
+    // ----- READER THREAD -----
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int LINE_BUFFER_SIZE = 256;
+    private static final int LINE_BUFFER_POOL_SIZE = 8;
+
+    private static final List<Stream> streams = new ArrayList<Stream>();
+    private static final LinkedList<byte[]> lineBufferPool = new LinkedList<byte[]>();
+    private static Thread thread = null;
+    private static boolean wakeupPending = false;
+
+    private static byte[] obtainLineBuffer() {
+        // only ever called from the multiplexer thread
+        byte[] buffer = lineBufferPool.poll();
+        return (buffer != null) ? buffer : new byte[LINE_BUFFER_SIZE];
+    }
+
+    private static void recycleLineBuffer(byte[] buffer) {
+        // only ever called from the multiplexer thread; grown buffers are not kept
+        if ((buffer.length == LINE_BUFFER_SIZE) && (lineBufferPool.size() < LINE_BUFFER_POOL_SIZE)) {
+            lineBufferPool.add(buffer);
+        }
+    }
+
+    private static void loop() {
+        byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+        List<Stream> active = new ArrayList<Stream>();
+
+        while (true) {
+            synchronized (streams) {
+                while (streams.size() == 0) {
+                    try {
+                        streams.wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                active.clear();
+                active.addAll(streams);
+            }
+
+            // data already buffered on the Java side does not show up in
+            // poll(), so don't block if there is any
+            boolean buffered = false;
+            for (Stream stream : active) {
+                try {
+                    if (stream.inputStream.available() > 0) {
+                        buffered = true;
+                    }
+                } catch (IOException e) {
+                    buffered = true;
+                }
+            }
+
+            boolean[] ready = poller.poll(active, !buffered);
+
+            for (int i = 0; i < active.size(); i++) {
+                Stream stream = active.get(i);
+                boolean done = false;
+                try {
+                    if (ready[i] || (stream.inputStream.available() > 0)) {
+                        // poll() said there is something to read (or the
+                        // end of the stream), so this does not block
+                        int read = stream.inputStream.read(readBuffer, 0, readBuffer.length);
+                        if (read < 0) {
+                            done = true;
+                        } else {
+                            stream.feed(readBuffer, read);
+                        }
+                    }
+                } catch (IOException e) {
+                    done = true;
+                }
+
+                if (done) {
+                    synchronized (streams) {
+                        streams.remove(stream);
+                    }
+                    stream.close();
+                }
+            }
+        }
+    }
+
+    // ----- POLL -----
+
+    /**
+     * android.system.Os calls, kept in a class of their own so that nothing
+     * from android.system is loaded where it does not exist
+     */
+    private static class Poller {
+        private final FileDescriptor wakeupRead;
+        private final FileDescriptor wakeupWrite;
+        private final byte[] wakeupBuffer = new byte[16];
+
+        private Poller() throws ErrnoException {
+            FileDescriptor[] pipe = Os.pipe();
+            wakeupRead = pipe[0];
+            wakeupWrite = pipe[1];
+        }
+
+        /**
+         * Interrupt a poll() in progress; only called with the streams lock
+         * held, and at most once until the next poll() has returned
+         */
+        private void wakeup() {
+            try {
+                Os.write(wakeupWrite, new byte[] { 0 }, 0, 1);
+            } catch (Exception e) {
+                Debug.log("StreamMultiplexer: wakeup failed: " + e);
+            }
+        }
+
+        /**
+         * @param active Streams to wait for
+         * @param block Wait until something happens, or just check ?
+         * @return For each stream, whether it can be read without blocking
+         */
+        private boolean[] poll(List<Stream> active, boolean block) {
+            StructPollfd[] fds = new StructPollfd[active.size() + 1];
+            for (int i = 0; i < fds.length; i++) {
+                fds[i] = new StructPollfd();
+                fds[i].fd = (i == 0) ? wakeupRead : active.get(i - 1).fd;
+                fds[i].events = (short) OsConstants.POLLIN;
+            }
+
+            boolean[] ready = new boolean[active.size()];
+            while (true) {
+                try {
+                    Os.poll(fds, block ? -1 : 0);
+                    break;
+                } catch (ErrnoException e) {
+                    if (e.errno != OsConstants.EINTR) {
+                        // readiness is unknown; only what available()
+                        // reports is read, after a short pause so this
+                        // doesn't spin
+                        Debug.log("StreamMultiplexer: poll failed: " + e);
+                        try {
+                            Thread.sleep(10);
+                        } catch (InterruptedException e2) {
+                        }
+                        return ready;
+                    }
+                }
+            }
+
+            if (fds[0].revents != 0) {
+                synchronized (streams) {
+                    try {
+                        Os.read(wakeupRead, wakeupBuffer, 0, wakeupBuffer.length);
+                    } catch (Exception e) {
+                    }
+                    wakeupPending = false;
+                }
+            }
+
+            // POLLHUP and POLLERR count as ready: the read that follows
+            // returns the end of the stream, or fails
+            for (int i = 0; i < ready.length; i++) {
+                ready[i] = fds[i + 1].revents != 0;
+            }
+            return ready;
+        }
+    }
+}
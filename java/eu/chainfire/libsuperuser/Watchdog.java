@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Process-wide watchdog timer for {@link Shell.Interactive}
+ * </p>
+ * <p>
+ * A single daemon thread ticks once per second for every outstanding command,
+ * in every shell, instead of each command starting (and shutting down) its
+ * own ScheduledThreadPoolExecutor. Registrations are kept in an intrusive
+ * doubly-linked list, so scheduling and cancelling are both O(1). The thread
+ * is started on first use, and sleeps while nothing is outstanding.
+ * </p>
+ * <p>
+ * Tick callbacks are executed on the watchdog thread, and should return
+ * quickly.
+ * </p>
+ */
+public class Watchdog {
+    /**
+     * Registration handle, returned by {@link Watchdog#schedule(Runnable)}
+     */
+    public static class Entry {
+        private final Runnable onTick;
+        private long registered = 0;
+        private Entry prev = null;
+        private Entry next = null;
+        private boolean scheduled = false;
+
+        private Entry(Runnable onTick) {
+            this.onTick = onTick;
+        }
+
+        /**
+         * @return Is this entry still receiving ticks ?
+         */
+        public boolean isScheduled() {
+            synchronized (lock) {
+                return scheduled;
+            }
+        }
+    }
+
+    private static final long TICK_INTERVAL = 1000;
+    private static final long TICK_INTERVAL_NS = TICK_INTERVAL * 1000000L;
+
+    private static final Object lock = new Object();
+    private static Entry head = null;
+    private static int outstanding = 0;
+    private static Thread thread = null;
+
+    private static long countScheduled = 0;
+    private static long countCancelled = 0;
+    private static long countWatchdogExit = 0;
+    private static long countShellDied = 0;
+
+    /**
+     * <p>
+     * Start calling onTick once per second, until the returned entry is
+     * cancelled
+     * </p>
+     *
+     * @param onTick Runnable to execute on every tick
+     * @return Entry to pass to {@link #cancel(Entry)}
+     */
+    public static Entry schedule(Runnable onTick) {
+        Entry entry = new Entry(onTick);
+        synchronized (lock) {
+            entry.next = head;
+            if (head != null) {
+                head.prev = entry;
+            }
+            head = entry;
+            entry.registered = System.nanoTime();
+            entry.scheduled = true;
+            outstanding++;
+            countScheduled++;
+
+            if (thread == null) {
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        loop();
+                    }
+                }, "Watchdog");
+                thread.setDaemon(true);
+                thread.start();
+            } else if (outstanding == 1) {
+                lock.notifyAll();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * <p>
+     * Stop delivering ticks to an entry. Safe to call multiple times, and with
+     * null.
+     * </p>
+     * <p>
+     * A tick that is already being delivered when this is called may still
+     * complete, so callbacks should check whether they are still current.
+     * </p>
+     *
+     * @param entry Entry returned by {@link #schedule(Runnable)}
+     */
+    public static void cancel(Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        synchronized (lock) {
+            if (!entry.scheduled) {
+                return;
+            }
+            if (entry.prev != null) {
+                entry.prev.next = entry.next;
+            } else {
+                head = entry.next;
+            }
+            if (entry.next != null) {
+                entry.next.prev = entry.prev;
+            }
+            entry.prev = null;
+            entry.next = null;
+            entry.scheduled = false;
+            outstanding--;
+            countCancelled++;
+        }
+    }
+
+    // ----- METRICS -----
+
+    static void onWatchdogExit() {
+        synchronized (lock) {
+            countWatchdogExit++;
+        }
+    }
+
+    static void onShellDied() {
+        synchronized (lock) {
+            countShellDied++;
+        }
+    }
+
+    /**
+     * @return Number of commands currently being watched
+     */
+    public static int getOutstanding() {
+        synchronized (lock) {
+            return outstanding;
+        }
+    }
+
+    /**
+     * @return Total number of watchdog registrations since the process started
+     */
+    public static long getScheduledCount() {
+        synchronized (lock) {
+            return countScheduled;
+        }
+    }
+
+    /**
+     * @return Total number of watchdog registrations that have been cancelled
+     */
+    public static long getCancelledCount() {
+        synchronized (lock) {
+            return countCancelled;
+        }
+    }
+
+    /**
+     * @return Number of commands that were aborted with WATCHDOG_EXIT
+     */
+    public static long getWatchdogExitCount() {
+        synchronized (lock) {
+            return countWatchdogExit;
+        }
+    }
+
+    /**
+     * @return Number of commands that were aborted with SHELL_DIED
+     */
+    public static long getShellDiedCount() {
+        synchronized (lock) {
+            return countShellDied;
+        }
+    }
+
+    // ----- TICKER THREAD -----
+
+    private static void loop() {
+        List<Runnable> ticks = new ArrayList<Runnable>();
+
+        while (true) {
+            synchronized (lock) {
+                try {
+                    while (outstanding == 0) {
+                        lock.wait();
+                    }
+                    lock.wait(TICK_INTERVAL);
+                } catch (InterruptedException e) {
+                }
+
+                // callbacks may (and usually will) cancel their own entry, so
+                // they are run outside of the lock from a snapshot. The wait
+                // above may have been cut short by schedule(), so entries that
+                // have not been registered for a full interval yet are left
+                // for the next tick.
+                long now = System.nanoTime();
+                ticks.clear();
+                for (Entry entry = head; entry != null; entry = entry.next) {
+                    if (now - entry.registered >= TICK_INTERVAL_NS) {
+                        ticks.add(entry.onTick);
+                    }
+                }
+            }
+
+            for (Runnable onTick : ticks) {
+                try {
+                    onTick.run();
+                } catch (Exception e) {
+                    Debug.log("Watchdog tick failed: " + e);
+                }
+            }
+        }
+    }
+}
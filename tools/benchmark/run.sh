@@ -0,0 +1,34 @@
+#!/bin/sh
+# Builds and runs the libsuperuser benchmarks. Arguments are passed to JMH, e.g.:
+#
+#   tools/benchmark/run.sh InteractiveBenchmark -prof gc
+#
+# Required environment:
+#   JMH_CLASSPATH  jmh-core, jmh-generator-annprocess and their dependencies
+#                  (jopt-simple, commons-math3), separated by ':'
+#   ANDROID_JAR    android.jar of any platform >= 17; only needed to compile
+#                  libsuperuser, nothing from it is used at runtime
+
+set -e
+
+if [ -z "$JMH_CLASSPATH" ] || [ -z "$ANDROID_JAR" ]; then
+    echo "JMH_CLASSPATH and ANDROID_JAR must be set, see $0" >&2
+    exit 1
+fi
+
+root=$(cd "$(dirname "$0")/../.." && pwd)
+out=$root/tools/benchmark/build
+
+rm -rf "$out"
+mkdir -p "$out/classes"
+
+javac -nowarn -d "$out/classes" \
+    -cp "$JMH_CLASSPATH:$ANDROID_JAR" \
+    -processor org.openjdk.jmh.generators.BenchmarkProcessor \
+    "$root"/java/eu/chainfire/libsuperuser/*.java \
+    "$root"/tools/benchmark/src/eu/chainfire/libsuperuser/benchmark/*.java
+
+cd "$root"
+exec java -cp "$out/classes:$JMH_CLASSPATH" \
+    -Dfakesu="$root/tools/fakesu/su" \
+    org.openjdk.jmh.Main "$@"
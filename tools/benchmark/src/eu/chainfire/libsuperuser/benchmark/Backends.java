@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser.benchmark;
+
+import java.io.File;
+
+/**
+ * Shell backends the benchmarks can run against
+ */
+final class Backends {
+    /** Plain local shell */
+    static final String SH = "sh";
+
+    /** Stand-in su from tools/fakesu, located through the "fakesu" system property */
+    static final String FAKESU = "fakesu";
+
+    private Backends() {
+    }
+
+    /**
+     * @param backend {@link #SH} or {@link #FAKESU}
+     * @return Shell command to pass to Shell.run or Shell.Builder.setShell
+     */
+    static String shell(String backend) {
+        if (SH.equals(backend)) {
+            return "sh";
+        }
+        if (FAKESU.equals(backend)) {
+            File su = new File(System.getProperty("fakesu", "tools/fakesu/su"));
+            if (!su.canExecute()) {
+                throw new IllegalStateException("fake su not found at " + su.getAbsolutePath()
+                        + ", set -Dfakesu=/path/to/tools/fakesu/su");
+            }
+            return su.getAbsolutePath();
+        }
+        throw new IllegalArgumentException("unknown backend: " + backend);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * <p>
+ * Per-command cost of a long-lived {@link Shell.Interactive}: the latency of a
+ * single command, and the throughput of bursts of small commands, with and
+ * without pipelining
+ * </p>
+ * <p>
+ * Run with "-prof gc" to get the allocation rate per command.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InteractiveBenchmark {
+    private static final int BURST = 50;
+
+    @Param({ Backends.SH, Backends.FAKESU })
+    public String backend;
+
+    @Param({ "false", "true" })
+    public boolean pipelined;
+
+    private Shell.Interactive shell;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        shell = new Shell.Builder()
+                .setShell(Backends.shell(backend))
+                .setAutoHandler(false)
+                .setWantSTDERR(false)
+                .setPipelined(pipelined)
+                .setWatchdogTimeout(30)
+                .open();
+        shell.waitForIdle();
+        if (!shell.isRunning()) {
+            throw new IllegalStateException("shell failed to start");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        shell.close();
+    }
+
+    /**
+     * Submit one command and wait for its result
+     */
+    @Benchmark
+    @BenchmarkMode({ Mode.AverageTime, Mode.SampleTime })
+    public void latency() {
+        shell.addCommand("echo latency");
+        shell.waitForIdle();
+    }
+
+    /**
+     * Submit a burst of small commands at once, and wait for all of them
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OperationsPerInvocation(BURST)
+    public void burst() {
+        for (int i = 0; i < BURST; i++) {
+            shell.addCommand("echo burst");
+        }
+        shell.waitForIdle();
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * <p>
+ * Throughput of reading large outputs from a real process through
+ * {@link Shell#run}, which uses a StreamGobbler pair
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LargeOutputBenchmark {
+    @Param({ "1000", "100000" })
+    public int lines;
+
+    @Param({ "80" })
+    public int lineLength;
+
+    private String[] command;
+
+    @Setup
+    public void setup() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < lineLength; i++) {
+            line.append((char) ('a' + (i % 26)));
+        }
+
+        command = new String[] {
+                "i=0; while [ $i -lt " + lines + " ]; do echo " + line + "; i=$((i+1)); done"
+        };
+    }
+
+    @Benchmark
+    public List<String> read() {
+        List<String> result = Shell.run("sh", command, null, false);
+        if ((result == null) || (result.size() != lines)) {
+            throw new IllegalStateException("unexpected output");
+        }
+        return result;
+    }
+}
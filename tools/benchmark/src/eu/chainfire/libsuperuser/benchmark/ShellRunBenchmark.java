@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eu.chainfire.libsuperuser.Shell;
+
+/**
+ * <p>
+ * One-shot cost of {@link Shell#run(String, String[], String[], boolean)}:
+ * process start, the su handshake (for fakesu), reader setup, and teardown
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ShellRunBenchmark {
+    @Param({ Backends.SH, Backends.FAKESU })
+    public String backend;
+
+    @Param({ "1", "10" })
+    public int commands;
+
+    private String shell;
+    private String[] batch;
+
+    @Setup
+    public void setup() {
+        shell = Backends.shell(backend);
+        batch = new String[commands];
+        for (int i = 0; i < commands; i++) {
+            batch[i] = "echo " + i;
+        }
+    }
+
+    @Benchmark
+    public List<String> run() {
+        List<String> output = Shell.run(shell, batch, null, false);
+        if ((output == null) || (output.size() != commands)) {
+            throw new IllegalStateException("unexpected output: " + output);
+        }
+        return output;
+    }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2012-2014 Jorrit "Chainfire" Jongma
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package eu.chainfire.libsuperuser.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import eu.chainfire.libsuperuser.StreamGobbler;
+
+/**
+ * <p>
+ * Line-processing throughput for large outputs
+ * </p>
+ * <p>
+ * Prepared output is fed through {@link StreamGobbler} on the benchmark
+ * thread, so this measures line splitting, decoding and collecting without any
+ * process involved. See {@link LargeOutputBenchmark} for the same amount of
+ * output read from a real process.
+ * </p>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StreamGobblerBenchmark {
+    @Param({ "1000", "100000" })
+    public int lines;
+
+    @Param({ "80" })
+    public int lineLength;
+
+    private byte[] output;
+
+    @Setup
+    public void setup() throws UnsupportedEncodingException {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < lineLength; i++) {
+            line.append((char) ('a' + (i % 26)));
+        }
+        line.append('\n');
+
+        StringBuilder all = new StringBuilder(lines * (lineLength + 1));
+        for (int i = 0; i < lines; i++) {
+            all.append(line);
+        }
+        output = all.toString().getBytes("UTF-8");
+    }
+
+    @Benchmark
+    public List<String> gobble() {
+        List<String> result = new ArrayList<String>(lines);
+        new StreamGobbler("BENCH", new ByteArrayInputStream(output), result).run();
+        if (result.size() != lines) {
+            throw new IllegalStateException("read " + result.size() + " lines");
+        }
+        return result;
+    }
+}
@@ -0,0 +1,52 @@
+# Shared helpers for the fake su environment; sourced by su and the tools in bin/.
+#
+# Environment variables (all optional):
+#   FAKESU_STATE          directory holding emulated settings/wm state (default: $TMPDIR/fakesu)
+#   FAKESU_LOG            file to append every emulated command to
+#   FAKESU_LATENCY        delay before every emulated command, in seconds (default: 0)
+#   FAKESU_EXIT           exit code for every emulated command (default: normal behavior)
+#   FAKESU_<TOOL>_LATENCY per-tool override of FAKESU_LATENCY (TOOL = SU, WM, SETTINGS, AM, INPUT)
+#   FAKESU_<TOOL>_EXIT    per-tool override of FAKESU_EXIT
+#   FAKESU_DENY           set to 1 to make su refuse access, like a device without root
+
+FAKESU_STATE=${FAKESU_STATE:-${TMPDIR:-/tmp}/fakesu}
+export FAKESU_STATE
+mkdir -p "$FAKESU_STATE"
+
+# fakesu_begin TOOL [ARGS...]
+# Logs the command, waits for the configured latency, and exits with the
+# configured exit code (if any) before the tool does anything.
+fakesu_begin() {
+    fakesu_tool=$1
+    shift
+
+    if [ -n "$FAKESU_LOG" ]; then
+        echo "$(echo "$fakesu_tool" | tr 'A-Z' 'a-z') $*" >> "$FAKESU_LOG"
+    fi
+
+    eval "fakesu_latency=\${FAKESU_${fakesu_tool}_LATENCY:-\${FAKESU_LATENCY:-0}}"
+    if [ "$fakesu_latency" != "0" ]; then
+        sleep "$fakesu_latency"
+    fi
+
+    eval "fakesu_exit=\${FAKESU_${fakesu_tool}_EXIT:-\${FAKESU_EXIT:-}}"
+    if [ -n "$fakesu_exit" ] && [ "$fakesu_exit" != "0" ]; then
+        echo "$(echo "$fakesu_tool" | tr 'A-Z' 'a-z'): simulated failure ($fakesu_exit)" >&2
+        exit "$fakesu_exit"
+    fi
+}
+
+# fakesu_get FILE DEFAULT
+fakesu_get() {
+    if [ -f "$FAKESU_STATE/$1" ]; then
+        cat "$FAKESU_STATE/$1"
+    else
+        echo "$2"
+    fi
+}
+
+# fakesu_set FILE VALUE
+fakesu_set() {
+    mkdir -p "$(dirname "$FAKESU_STATE/$1")"
+    echo "$2" > "$FAKESU_STATE/$1"
+}